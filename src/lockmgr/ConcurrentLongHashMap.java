@@ -0,0 +1,93 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concurrent hash map from primitive long keys to non-null values,
+ * striped into <code>LongHashMap</code> segments each guarded by its own monitor.
+ */
+class ConcurrentLongHashMap<V> {
+    private static final int SEGMENTS = 16;
+    private final List<LongHashMap<V>> segments;
+
+    ConcurrentLongHashMap() {
+        this.segments = new ArrayList<LongHashMap<V>>(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new LongHashMap<V>());
+        }
+    }
+
+    private LongHashMap<V> segment(long key) {
+        // the low bits of the hash index the slots in a segment, so take the segment from the high bits
+        return segments.get(LongHashMap.index(key, -1) >>> 28);
+    }
+
+    V get(long key) {
+        LongHashMap<V> segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    V put(long key, V value) {
+        LongHashMap<V> segment = segment(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    /**
+     * @return the current value of the key if there is one, or null if the given value is put
+     */
+    V putIfAbsent(long key, V value) {
+        LongHashMap<V> segment = segment(key);
+        synchronized (segment) {
+            V old = segment.get(key);
+            if (old == null) {
+                segment.put(key, value);
+            }
+            return old;
+        }
+    }
+
+    V remove(long key) {
+        LongHashMap<V> segment = segment(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /**
+     * remove the key only if it is mapped to the given value
+     *
+     * @return true if the key is removed
+     */
+    boolean remove(long key, V value) {
+        LongHashMap<V> segment = segment(key);
+        synchronized (segment) {
+            if (segment.get(key) != value) {
+                return false;
+            }
+            segment.remove(key);
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (LongHashMap<V> segment : segments) {
+            synchronized (segment) {
+                if (!segment.isEmpty()) {
+                    builder.append(segment);
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
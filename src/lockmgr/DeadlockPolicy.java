@@ -0,0 +1,20 @@
+package lockmgr;
+
+/**
+ * How the LockManager handles deadlocks, where the tid is used as the timestamp of the transaction,
+ * i.e. the smaller the tid, the older the transaction
+ */
+public enum DeadlockPolicy {
+    /**
+     * detect cycles in the waits-for graph and abort a victim, with the deadlock timeout as a fallback
+     */
+    DETECT,
+    /**
+     * an older requester waits for a younger holder, while a younger requester aborts itself
+     */
+    WAIT_DIE,
+    /**
+     * an older requester aborts (wounds) a younger holder and waits, while a younger requester waits
+     */
+    WOUND_WAIT
+}
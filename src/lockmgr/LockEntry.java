@@ -1,110 +1,289 @@
 package lockmgr;
 
-import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.*;
 
 /**
  * Created by Dawnwords on 2015/11/1.
+ * <p/>
+ * Granted and waiting requests indexed by tid, where an upgrading request waits ahead of the queue.
  */
 public class LockEntry {
 
-    private String dataKey;
-    private Queue<TransactionStatus> waitingQueue;
+    private String table;
+    private Object key;
+    private LongHashMap<TransactionStatus> statusMap;
+    private Set<TransactionStatus> grantedSet;
+    private int[] grantedCounts;
+    private Map<Long, TransactionStatus> upgradingMap;
+    private Set<TransactionStatus> waitingQueue;
+    private boolean recycled;
 
-    public LockEntry(String dataKey) {
-        this.dataKey = dataKey;
-        this.waitingQueue = new ConcurrentLinkedQueue<TransactionStatus>();
+    /**
+     * @param key the key in the table, or null for the table itself
+     */
+    public LockEntry(String table, Object key) {
+        this.table = table;
+        this.key = key;
+        this.statusMap = new LongHashMap<TransactionStatus>();
+        this.grantedSet = new LinkedHashSet<TransactionStatus>();
+        this.grantedCounts = new int[LockType.values().length];
+        this.upgradingMap = new LinkedHashMap<Long, TransactionStatus>();
+        this.waitingQueue = new LinkedHashSet<TransactionStatus>();
     }
 
-    public long deadlockRemaining() {
-        TransactionStatus currentStatus = waitingQueue.peek();
-        return currentStatus == null ? 0 :
-                currentStatus.lockTime().getTime() + LockManager.DEADLOCK_TIMEOUT - System.currentTimeMillis();
+    public String table() {
+        return table;
     }
 
-    public void addTransaction(long tid, LockType lockType) throws DeadlockException {
-        TransactionStatus status = getTransactionStatus(tid);
+    public Object key() {
+        return key;
+    }
+
+    public String dataKey() {
+        return key == null ? table : table + ":" + key;
+    }
+
+    /**
+     * add a lock request of the given transaction
+     *
+     * @return the status of the request, which the caller should wait on if it is not granted,
+     * or null if this entry has been recycled and the caller should retry with a new entry
+     */
+    public TransactionStatus addTransaction(long tid, LockType lockType) {
+        TransactionStatus status = addRequest(tid, lockType);
+        if (status != null && status.granted()) {
+            status.activate();
+        }
+        return status;
+    }
+
+    private synchronized TransactionStatus addRequest(long tid, LockType lockType) {
+        if (recycled) {
+            return null;
+        }
+        TransactionStatus status = statusMap.get(tid);
         if (status == null) {
-            status = new TransactionStatus(tid, new Date(), lockType);
-            waitingQueue.add(status);
-            if (shouldPending(status, lockType)) {
-                status.pending();
+            status = new TransactionStatus(tid, new Date(), lockType, this);
+            statusMap.put(tid, status);
+            // a request can be granted if no request is waiting ahead of it
+            if (waitingQueue.isEmpty() && isCompatible(lockType, null)) {
+                grant(status, null);
+            } else {
+                waitingQueue.add(status);
+            }
+        } else if (!status.lockType().covers(lockType)) {
+            if (!status.granted()) {
+                // not granted yet, just wait for the stronger type
+                status.lockUpgrade(lockType);
+            } else {
+                status = upgrade(status, status.lockType().combine(lockType));
             }
-        } else {
-            status.lockUpgrade();
         }
+        return status;
     }
 
-    private boolean shouldPending(TransactionStatus status, LockType lockType) {
-        TransactionStatus currentStatus = waitingQueue.peek();
-        return currentStatus != status && !currentStatus.lockType().isShared(lockType);
+    private TransactionStatus upgrade(TransactionStatus granted, LockType lockType) {
+        long tid = granted.tid();
+        TransactionStatus upgrading = upgradingMap.get(tid);
+        if (upgrading != null) {
+            upgrading.lockUpgrade(lockType);
+            return upgrading;
+        }
+        upgrading = new TransactionStatus(tid, new Date(), lockType, this);
+        for (TransactionStatus other : upgradingMap.values()) {
+            TransactionStatus otherGranted = statusMap.get(other.tid());
+            if (!lockType.isShared(otherGranted.lockType()) && !other.lockType().isShared(granted.lockType())) {
+                upgrading.abort("Upgrading together with the transaction " + other.tid());
+                return upgrading;
+            }
+        }
+        upgradingMap.put(tid, upgrading);
+        // a new upgrading request makes no other grantable, so only itself may be granted
+        grantUpgrades(null);
+        return upgrading;
     }
 
-    public long releaseCurrent() {
-        TransactionStatus currentStatus = waitingQueue.poll();
-        if (currentStatus == null) {
-            return -1;
+    /**
+     * grant the upgrading requests compatible with the locks of the other holders,
+     * each of which replaces the lock its transaction holds
+     */
+    private List<TransactionStatus> grantUpgrades(List<TransactionStatus> granted) {
+        Iterator<TransactionStatus> iterator = upgradingMap.values().iterator();
+        while (iterator.hasNext()) {
+            TransactionStatus upgrading = iterator.next();
+            TransactionStatus base = statusMap.get(upgrading.tid());
+            if (isCompatible(upgrading.lockType(), base)) {
+                iterator.remove();
+                ungrant(base);
+                statusMap.put(upgrading.tid(), upgrading);
+                granted = grant(upgrading, granted);
+            }
         }
-        passLock();
-        return currentStatus.tid();
+        return granted;
     }
 
-    private void passLock() {
-        TransactionStatus currentStatus = waitingQueue.peek();
-        if (currentStatus != null) {
-            switch (currentStatus.lockType()) {
-                case READ:
-                    for (TransactionStatus status : waitingQueue) {
-                        if (status.lockType() == LockType.READ) {
-                            status.activate();
-                        }
-                    }
-                    break;
-                case WRITE:
-                    currentStatus.activate();
-                    break;
+    /**
+     * @param exclude the granted request not counted, or null
+     * @return if the lock type is compatible with all the granted requests,
+     * and with all the upgrading requests unless it is upgrading itself
+     */
+    private boolean isCompatible(LockType lockType, TransactionStatus exclude) {
+        for (LockType type : LockType.values()) {
+            int count = grantedCounts[type.ordinal()];
+            if (exclude != null && exclude.lockType() == type) {
+                count--;
+            }
+            if (count > 0 && !lockType.isShared(type)) {
+                return false;
             }
         }
+        if (exclude == null) {
+            for (TransactionStatus upgrading : upgradingMap.values()) {
+                if (!lockType.isShared(upgrading.lockType())) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
-    public boolean release(long tid) {
-        TransactionStatus currentStatus = waitingQueue.peek();
-        if (currentStatus == null) {
-            return false;
-        }
-        if (currentStatus.tid() == tid) {
-            releaseCurrent();
-            return true;
+    /**
+     * grant the request, whose future is completed by <code>activate()</code> out of the monitor,
+     * as completing a future may run the handlers of the others aborted meanwhile
+     *
+     * @return the requests granted so far, including the given one
+     */
+    private List<TransactionStatus> grant(TransactionStatus status, List<TransactionStatus> granted) {
+        grantedSet.add(status);
+        grantedCounts[status.lockType().ordinal()]++;
+        status.grant();
+        if (granted == null) {
+            granted = new ArrayList<TransactionStatus>();
         }
-        TransactionStatus status = getTransactionStatus(tid);
-        if (status == null) {
-            // no such tid or lock has been occupied
-            return false;
+        granted.add(status);
+        return granted;
+    }
+
+    private void ungrant(TransactionStatus status) {
+        grantedSet.remove(status);
+        grantedCounts[status.lockType().ordinal()]--;
+    }
+
+    private List<TransactionStatus> passLock() {
+        List<TransactionStatus> granted = grantUpgrades(null);
+        Iterator<TransactionStatus> iterator = waitingQueue.iterator();
+        while (iterator.hasNext()) {
+            TransactionStatus status = iterator.next();
+            if (!isCompatible(status.lockType(), null)) {
+                break;
+            }
+            iterator.remove();
+            granted = grant(status, granted);
         }
+        return granted;
+    }
 
-        if (status.lockType() == LockType.READ) {
-            waitingQueue.remove();
-            return true;
+    /**
+     * @return the transactions the given waiting request waits for,
+     * which are the incompatible requests granted or ahead of it, where the upgrading requests are ahead of all
+     */
+    public synchronized List<Long> blockers(TransactionStatus status) {
+        List<Long> blockers = new ArrayList<Long>();
+        if (status.granted() || status.released()) {
+            return blockers;
+        }
+        for (TransactionStatus current : grantedSet) {
+            if (current.tid() != status.tid() && !current.lockType().isShared(status.lockType())) {
+                blockers.add(current.tid());
+            }
+        }
+        if (isUpgrading(status)) {
+            return blockers;
         }
-        throw new IllegalStateException("no way to release a WRITE lock waiting");
+        for (TransactionStatus current : upgradingMap.values()) {
+            if (!current.lockType().isShared(status.lockType())) {
+                blockers.add(current.tid());
+            }
+        }
+        for (TransactionStatus current : waitingQueue) {
+            if (current == status) {
+                break;
+            }
+            if (!current.lockType().isShared(status.lockType())) {
+                blockers.add(current.tid());
+            }
+        }
+        return blockers;
     }
 
-    public boolean shouldBeRecycled() {
-        return waitingQueue.isEmpty();
+    private boolean isUpgrading(TransactionStatus status) {
+        return !upgradingMap.isEmpty() && upgradingMap.get(status.tid()) == status;
     }
 
-    private TransactionStatus getTransactionStatus(long tid) {
-        for (TransactionStatus status : waitingQueue) {
-            if (status.tid() == tid) {
-                return status;
+    /**
+     * @return the transactions waiting for the given request besides its blockers,
+     * which are the incompatible waiting requests it jumps ahead of as an upgrading or upgraded request
+     */
+    public synchronized List<Long> dependents(TransactionStatus status) {
+        List<Long> dependents = new ArrayList<Long>();
+        if (isUpgrading(status) || grantedSet.contains(status)) {
+            for (TransactionStatus current : waitingQueue) {
+                if (!current.lockType().isShared(status.lockType())) {
+                    dependents.add(current.tid());
+                }
             }
         }
-        return null;
+        return dependents;
+    }
+
+    /**
+     * release the lock held or requested by the given transaction
+     *
+     * @return the released status, or null if the transaction neither held nor requested the lock
+     */
+    public TransactionStatus release(long tid) {
+        TransactionStatus status, upgrading = null;
+        List<TransactionStatus> granted;
+        synchronized (this) {
+            status = statusMap.remove(tid);
+            if (status == null) {
+                return null;
+            }
+            if (!upgradingMap.isEmpty()) {
+                upgrading = upgradingMap.remove(tid);
+                if (upgrading != null) {
+                    upgrading.release();
+                }
+            }
+            if (grantedSet.contains(status)) {
+                ungrant(status);
+            } else {
+                waitingQueue.remove(status);
+            }
+            status.release();
+            granted = passLock();
+            recycled = statusMap.isEmpty();
+        }
+        // a request released before granted, e.g. by unlockAll(), completes its future as aborted
+        if (upgrading != null) {
+            upgrading.abort("Released before the upgrade is granted");
+        }
+        status.abort("Released before granted");
+        if (granted != null) {
+            for (TransactionStatus current : granted) {
+                current.activate();
+            }
+        }
+        return status;
+    }
+
+    public synchronized boolean shouldBeRecycled() {
+        return recycled;
     }
 
     @Override
-    public String toString() {
-        return String.format("{%s:%s}", dataKey, waitingQueue);
+    public synchronized String toString() {
+        return String.format("{%s:%s%s%s}", dataKey(), grantedSet,
+                upgradingMap.isEmpty() ? "" : "[U]" + upgradingMap.values(), waitingQueue);
     }
 }
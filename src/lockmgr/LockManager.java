@@ -3,102 +3,340 @@ package lockmgr;
 import util.Log;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 /**
  * Created by Dawnwords on 2015/11/1.
+ * <p/>
+ * Deadlocks are detected by the waits-for graph, with the deadlock timeout as a fallback,
+ * or prevented by wait-die or wound-wait.
  */
 public class LockManager {
     public static final long DEADLOCK_TIMEOUT = 10 * 1000;
-    private Map<String, LockEntry> keyLockEntryMap;
-    private ConcurrentMap<Long, Queue<String>> tidKeyMap;
+    private static final long TIMER_TICK = 100;
+    private ConcurrentMap<Object, LockEntry> tableLockEntryMap;
+    private ConcurrentMap<String, ConcurrentMap<Object, LockEntry>> rowLockEntryMaps;
+    private ConcurrentLongHashMap<Set<LockEntry>> tidLockEntryMap;
+    private ConcurrentNavigableMap<Long, Set<TransactionStatus>> timers;
+    private WaitsForGraph waitsForGraph;
+    private ConcurrentLongHashMap<Boolean> woundedTids;
+    private DeadlockPolicy deadlockPolicy;
+    private VictimPolicy victimPolicy;
+    private long deadlockTimeout;
     private MonitorThread monitorThread;
-    private transient boolean stop;
+    private volatile boolean stop;
 
     public LockManager() {
-        this.keyLockEntryMap = Collections.synchronizedMap(new LinkedHashMap<String, LockEntry>());
-        this.tidKeyMap = new ConcurrentHashMap<Long, Queue<String>>();
+        this(DeadlockPolicy.DETECT, VictimPolicy.YOUNGEST, DEADLOCK_TIMEOUT);
+    }
+
+    public LockManager(DeadlockPolicy deadlockPolicy, VictimPolicy victimPolicy, long deadlockTimeout) {
+        this.tableLockEntryMap = new ConcurrentHashMap<Object, LockEntry>();
+        this.rowLockEntryMaps = new ConcurrentHashMap<String, ConcurrentMap<Object, LockEntry>>();
+        this.tidLockEntryMap = new ConcurrentLongHashMap<Set<LockEntry>>();
+        this.timers = new ConcurrentSkipListMap<Long, Set<TransactionStatus>>();
+        this.waitsForGraph = new WaitsForGraph();
+        this.woundedTids = new ConcurrentLongHashMap<Boolean>();
+        this.deadlockPolicy = deadlockPolicy;
+        this.victimPolicy = victimPolicy;
+        this.deadlockTimeout = deadlockTimeout;
         this.monitorThread = new MonitorThread();
     }
 
     public void start() {
         stop = false;
-        monitorThread.start();
+        if (deadlockPolicy == DeadlockPolicy.DETECT) {
+            monitorThread.start();
+        }
     }
 
     public void shutdown() {
         stop = true;
-        monitorThread.wake();
+        LockSupport.unpark(monitorThread);
     }
 
     public boolean lock(long tid, String dataKey, LockType lockType) throws DeadlockException {
-        if (tid < 0 || dataKey == null) {
-            throw new IllegalArgumentException("lock argument error");
+        return lock(tid, dataKey, null, lockType);
+    }
+
+    public CompletableFuture<Boolean> lockAsync(long tid, String dataKey, LockType lockType) {
+        return lockAsync(tid, dataKey, null, lockType);
+    }
+
+    /**
+     * lock a row in a table, or the table itself, blocking until the lock is granted
+     *
+     * @param key the key of the row, or null to lock the table
+     * @throws DeadlockException if the request is aborted
+     */
+    public boolean lock(long tid, String table, Object key, LockType lockType) throws DeadlockException {
+        TransactionStatus status = request(tid, table, key, lockType);
+        if (status.aborted()) {
+            // aborted at once, e.g. by wait-die, so no need to wrap the cause for the future
+            throw status.abortCause();
         }
+        try {
+            return status.future().join();
+        } catch (CompletionException e) {
+            throw (DeadlockException) e.getCause();
+        }
+    }
 
-        LockEntry lockEntry = keyLockEntryMap.get(dataKey);
-        if (lockEntry == null) {
-            lockEntry = new LockEntry(dataKey);
-            keyLockEntryMap.put(dataKey, lockEntry);
+    /**
+     * request to lock a row in a table, or the table itself if key is null, without blocking
+     *
+     * @return the future completed with true when granted, or with a <code>DeadlockException</code> when aborted
+     */
+    public CompletableFuture<Boolean> lockAsync(long tid, String table, Object key, LockType lockType) {
+        try {
+            return request(tid, table, key, lockType).future();
+        } catch (DeadlockException e) {
+            CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+            future.completeExceptionally(e);
+            return future;
         }
-        // wake up deadlock monitor thread
-        monitorThread.wake();
+    }
 
-        Queue<String> keys = tidKeyMap.get(tid);
-        if (keys == null) {
-            keys = new ConcurrentLinkedQueue<String>();
-            tidKeyMap.put(tid, keys);
+    /**
+     * @return the status of the request, whose future is completed later if it waits
+     * @throws DeadlockException if the transaction is wounded, or wounded by an older request waiting behind
+     */
+    private TransactionStatus request(final long tid, String table, Object key, LockType lockType) throws DeadlockException {
+        if (tid < 0 || table == null) {
+            throw new IllegalArgumentException("lock argument error");
         }
+        checkWounded(tid);
 
-        if (!keys.contains(dataKey)) {
-            keys.add(dataKey);
+        Set<LockEntry> lockEntries = tidLockEntryMap.get(tid);
+        if (lockEntries == null) {
+            lockEntries = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<LockEntry, Boolean>()));
+            Set<LockEntry> old = tidLockEntryMap.putIfAbsent(tid, lockEntries);
+            if (old != null) {
+                lockEntries = old;
+            }
         }
 
-        lockEntry.addTransaction(tid, lockType);
-        printLockState();
-        return true;
+        ConcurrentMap<Object, LockEntry> lockEntryMap = lockEntryMap(table, key);
+        Object entryKey = key == null ? table : key;
+        LockEntry lockEntry;
+        TransactionStatus status;
+        do {
+            lockEntry = lockEntryMap.get(entryKey);
+            if (lockEntry == null) {
+                lockEntry = new LockEntry(table, key);
+                LockEntry old = lockEntryMap.putIfAbsent(entryKey, lockEntry);
+                if (old != null) {
+                    lockEntry = old;
+                }
+            }
+            status = lockEntry.addTransaction(tid, lockType);
+            if (status == null) {
+                // the entry is recycled by a concurrent release, help to remove it and retry
+                lockEntryMap.remove(entryKey, lockEntry);
+            }
+        } while (status == null);
+        // the entry is never recycled while the transaction has a request in it
+        lockEntries.add(lockEntry);
+
+        if (!status.granted()) {
+            waitsForGraph.startWaiting(status);
+            if (deadlockPolicy == DeadlockPolicy.DETECT) {
+                addTimer(status);
+            }
+            // run by the thread completing the future, i.e. the one releasing the lock, aborting the request or timing out
+            final TransactionStatus waitingStatus = status;
+            final LockEntry waitingEntry = lockEntry;
+            final Set<LockEntry> waitingEntries = lockEntries;
+            status.future().whenComplete(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean granted, Throwable e) {
+                    waitsForGraph.stopWaiting(waitingStatus);
+                    removeTimer(waitingStatus);
+                    if (e != null) {
+                        release(tid, waitingEntry);
+                        waitingEntries.remove(waitingEntry);
+                    }
+                }
+            });
+            try {
+                if (deadlockPolicy == DeadlockPolicy.DETECT) {
+                    detectDeadlock(status);
+                } else {
+                    preventDeadlock(status);
+                }
+            } catch (DeadlockException e) {
+                status.abort(e);
+            }
+        } else if (deadlockPolicy != DeadlockPolicy.DETECT) {
+            // an upgrade granted at once is ahead of the waiting requests as well
+            preventDeadlock(status.lockEntry().dependents(status), status);
+        }
+        return status;
     }
 
     public boolean unlockAll(long tid) {
         if (tid < 0) {
             throw new IllegalArgumentException("unlock argument error");
         }
-        Queue<String> keys = tidKeyMap.get(tid);
-        if (keys == null) {
+        woundedTids.remove(tid);
+        Set<LockEntry> lockEntries = tidLockEntryMap.remove(tid);
+        if (lockEntries == null) {
             return false;
         }
 
         boolean result = true;
-        Iterator<String> iterator = keys.iterator();
-        while (iterator.hasNext()) {
-            String dataKey = iterator.next();
-            LockEntry lockEntry = keyLockEntryMap.get(dataKey);
-            if (lockEntry == null) {
-                iterator.remove();
-            } else {
-                if (!lockEntry.release(tid)) {
-                    result = false;
+        // releasing a pending request removes its entry from the set on abort
+        for (LockEntry lockEntry : lockEntries.toArray(new LockEntry[0])) {
+            if (!release(tid, lockEntry)) {
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    private boolean release(long tid, LockEntry lockEntry) {
+        TransactionStatus status = lockEntry.release(tid);
+        if (lockEntry.shouldBeRecycled()) {
+            Object key = lockEntry.key();
+            lockEntryMap(lockEntry.table(), key).remove(key == null ? lockEntry.table() : key, lockEntry);
+        }
+        return status != null;
+    }
+
+    /**
+     * the lock tables of the rows are kept once created, as there are only a few tables
+     */
+    private ConcurrentMap<Object, LockEntry> lockEntryMap(String table, Object key) {
+        if (key == null) {
+            return tableLockEntryMap;
+        }
+        ConcurrentMap<Object, LockEntry> lockEntryMap = rowLockEntryMaps.get(table);
+        if (lockEntryMap == null) {
+            lockEntryMap = new ConcurrentHashMap<Object, LockEntry>();
+            ConcurrentMap<Object, LockEntry> old = rowLockEntryMaps.putIfAbsent(table, lockEntryMap);
+            if (old != null) {
+                lockEntryMap = old;
+            }
+        }
+        return lockEntryMap;
+    }
+
+    /**
+     * both transactions of the last edge forming a cycle may find the cycle,
+     * and they choose the same victim from it
+     */
+    private void detectDeadlock(TransactionStatus status) {
+        List<Long> cycle;
+        while (!status.aborted() && (cycle = waitsForGraph.findCycle(status.tid())) != null) {
+            Map<Long, Integer> lockCount = new HashMap<Long, Integer>();
+            for (long tid : cycle) {
+                Set<LockEntry> lockEntries = tidLockEntryMap.get(tid);
+                lockCount.put(tid, lockEntries == null ? 0 : lockEntries.size());
+            }
+            long victim = victimPolicy.choose(cycle, lockCount);
+            Log.i("deadlock cycle:%s, victim:%d", cycle, victim);
+            // none if the victim is granted meanwhile, and the cycle is broken
+            for (TransactionStatus victimStatus : waitsForGraph.waitingStatuses(victim)) {
+                victimStatus.abort("Victim of deadlock cycle " + cycle);
+            }
+        }
+    }
+
+    /**
+     * apply wait-die or wound-wait to the transactions the new waiting request waits for
+     *
+     * @throws DeadlockException if the requester dies by wait-die, or is already wounded
+     */
+    private void preventDeadlock(TransactionStatus status) throws DeadlockException {
+        if (status.aborted()) {
+            return;
+        }
+        // a wounder either sees the request waiting, or wounds the requester before the check
+        checkWounded(status.tid());
+        for (long blocker : status.lockEntry().blockers(status)) {
+            if (blocker < status.tid()) {
+                if (deadlockPolicy == DeadlockPolicy.WAIT_DIE) {
+                    throw new DeadlockException(status.tid(), "Wait-die: younger than the transaction " + blocker);
+                }
+            } else if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT) {
+                woundedTids.put(blocker, Boolean.TRUE);
+                for (TransactionStatus blockerStatus : waitsForGraph.waitingStatuses(blocker)) {
+                    blockerStatus.abort("Wound-wait: wounded by the transaction " + status.tid());
+                }
+            }
+        }
+        preventDeadlock(status.lockEntry().dependents(status), status);
+    }
+
+    /**
+     * apply wait-die or wound-wait to the waiting requests an upgrading request jumps ahead of,
+     * which then wait for it as well
+     *
+     * @throws DeadlockException if the upgrader is wounded by an older dependent
+     */
+    private void preventDeadlock(List<Long> dependents, TransactionStatus status) throws DeadlockException {
+        for (long dependent : dependents) {
+            if (dependent < status.tid()) {
+                if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT) {
+                    throw new DeadlockException(status.tid(), "Wound-wait: wounded by the transaction " + dependent);
                 }
-                if (lockEntry.shouldBeRecycled()) {
-                    keyLockEntryMap.remove(dataKey);
-                    iterator.remove();
+            } else if (deadlockPolicy == DeadlockPolicy.WAIT_DIE) {
+                for (TransactionStatus dependentStatus : waitsForGraph.waitingStatuses(dependent)) {
+                    // only its request behind the upgrade dies, while its other requests may wait on
+                    if (dependentStatus.lockEntry() == status.lockEntry()) {
+                        dependentStatus.abort("Wait-die: younger than the transaction " + status.tid());
+                    }
                 }
             }
         }
-        if (keys.isEmpty()) {
-            tidKeyMap.remove(tid);
+    }
+
+    /**
+     * a wounded transaction not waiting for any lock aborts on its next lock request
+     */
+    private void checkWounded(long tid) throws DeadlockException {
+        if (woundedTids.containsKey(tid)) {
+            throw new DeadlockException(tid, "Wound-wait: wounded by an older transaction");
         }
+    }
 
-        printLockState();
-        return result;
+    private long tick(TransactionStatus status) {
+        return status.lockTime().getTime() / TIMER_TICK;
     }
 
-    private void printLockState() {
-        Log.i("LockState:tid->key:%s,key->lockEntry:%s",
-                tidKeyMap,
-                keyLockEntryMap);
+    private void addTimer(TransactionStatus status) {
+        long tick = tick(status);
+        Set<TransactionStatus> timer = timers.get(tick);
+        if (timer == null) {
+            timer = Collections.newSetFromMap(new ConcurrentHashMap<TransactionStatus, Boolean>());
+            Set<TransactionStatus> old = timers.putIfAbsent(tick, timer);
+            if (old == null) {
+                // wake up deadlock monitor thread for the new tick
+                LockSupport.unpark(monitorThread);
+            } else {
+                timer = old;
+            }
+        }
+        timer.add(status);
+    }
+
+    private void removeTimer(TransactionStatus status) {
+        Set<TransactionStatus> timer = timers.get(tick(status));
+        if (timer != null) {
+            timer.remove(status);
+        }
+    }
+
+    /**
+     * @return a dump of the whole lock table, which is built on demand only, e.g. for debugging
+     */
+    public String lockState() {
+        return String.format("LockState:tid->lockEntry:%s,table->lockEntry:%s,row->lockEntry:%s",
+                tidLockEntryMap,
+                tableLockEntryMap,
+                rowLockEntryMaps);
     }
 
     /**
@@ -106,71 +344,32 @@ public class LockManager {
      */
     private class MonitorThread extends Thread {
 
-        private final Object mutex = new Object();
-
         public MonitorThread() {
             super("Deadlock Monitor");
+            setDaemon(true);
         }
 
         @Override
         public void run() {
             while (!stop) {
-                Iterator<String> iterator = keyLockEntryMap.keySet().iterator();
-                if (iterator.hasNext()) {
-                    // get the earliest lockEntry
-                    String key = iterator.next();
-                    LockEntry earliestLockEntry = keyLockEntryMap.get(key);
-                    if (earliestLockEntry == null) {
-                        throw new IllegalStateException("no lock entry for key:" + key);
-                    }
-                    // check deadlock remaining time
-                    long deadlockRemaining = earliestLockEntry.deadlockRemaining();
-                    Log.i("[%s]deadlock Remaining:%dms", key, deadlockRemaining);
-                    if (deadlockRemaining <= 0) {
-                        handleLockTimeout(key, earliestLockEntry);
-                    } else {
-                        try {
-                            sleep(deadlockRemaining);
-                        } catch (InterruptedException ignored) {
-                        }
-                    }
-                } else {
-                    // no lock entry, then pend till one inserted
-                    Log.i("pend");
-                    printLockState();
-                    pend();
+                Map.Entry<Long, Set<TransactionStatus>> earliest = timers.firstEntry();
+                if (earliest == null) {
+                    // no pending request, then pend till one inserted
+                    LockSupport.park(this);
+                    continue;
                 }
-            }
-        }
-
-        void handleLockTimeout(String key, LockEntry earliestLockEntry) {
-            long tid = earliestLockEntry.releaseCurrent();
-            if (earliestLockEntry.shouldBeRecycled()) {
-                keyLockEntryMap.remove(key);
-                Queue<String> keys = tidKeyMap.get(tid);
-                if (keys != null) {
-                    keys.remove(key);
-                    if (keys.isEmpty()) {
-                        tidKeyMap.remove(tid);
-                    }
+                // check deadlock remaining time of the whole tick
+                long deadlockRemaining = (earliest.getKey() + 1) * TIMER_TICK + deadlockTimeout - System.currentTimeMillis();
+                if (deadlockRemaining > 0) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(deadlockRemaining));
+                    continue;
                 }
-            }
-            printLockState();
-        }
-
-        void pend() {
-            synchronized (mutex) {
-                try {
-                    mutex.wait();
-                } catch (InterruptedException ignored) {
+                timers.remove(earliest.getKey());
+                for (TransactionStatus status : earliest.getValue()) {
+                    Log.i("[%s]deadlock timeout:%s", status.lockEntry().dataKey(), status);
+                    status.abort("Sleep timeout...deadlock.");
                 }
             }
         }
-
-        void wake() {
-            synchronized (mutex) {
-                mutex.notify();
-            }
-        }
     }
 }
@@ -0,0 +1,86 @@
+package lockmgr;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded throughput benchmark of the LockManager.
+ * Usage: <code>java -Dlog.debug=false lockmgr.LockManagerBenchmark [maxThreads] [keys] [seconds]</code>
+ */
+class LockManagerBenchmark {
+    private static final int LOCKS_PER_XID = 8;
+    private static final double WRITE_RATIO = 0.2;
+    private static final String TABLE = "table";
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 3;
+
+        // warm up
+        run(maxThreads, keys, 1, new AtomicLong());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            AtomicLong aborts = new AtomicLong();
+            double throughput = run(threads, keys, seconds, aborts);
+            System.out.printf("threads: %2d, keys: %d, lock throughput: %.0f ops/s, aborts: %d%n",
+                    threads, keys, throughput, aborts.get());
+        }
+    }
+
+    private static double run(final int threads, final int keys, long seconds, final AtomicLong aborts)
+            throws InterruptedException {
+        final LockManager lm = new LockManager();
+        lm.start();
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread("Benchmark-" + i) {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    // distinct keys, since a READ and then a WRITE of the same key is an upgrade, which may deadlock
+                    SortedSet<Integer> dataKeys = new TreeSet<Integer>();
+                    long count = 0;
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long xid = index; System.currentTimeMillis() < deadline[0]; xid += threads) {
+                        dataKeys.clear();
+                        while (dataKeys.size() < LOCKS_PER_XID) {
+                            dataKeys.add(random.nextInt(keys));
+                        }
+                        try {
+                            for (int dataKey : dataKeys) {
+                                LockType type = random.nextDouble() < WRITE_RATIO ? LockType.WRITE : LockType.READ;
+                                lm.lock(xid, TABLE, dataKey, type);
+                                count++;
+                            }
+                        } catch (DeadlockException e) {
+                            aborts.incrementAndGet();
+                        }
+                        lm.unlockAll(xid);
+                    }
+                    ops.addAndGet(count);
+                }
+            };
+            workers[i].start();
+        }
+        long begin = System.currentTimeMillis();
+        deadline[0] = begin + seconds * 1000;
+        startLatch.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.currentTimeMillis() - begin;
+        lm.shutdown();
+        return ops.get() * 1000.0 / elapsed;
+    }
+}
@@ -1,6 +1,7 @@
 package lockmgr;
 
 import java.util.StringTokenizer;
+import java.util.function.BiConsumer;
 
 class LockManagerTest {
 
@@ -11,6 +12,10 @@ class LockManagerTest {
 
         test1();
         test2();
+        test3();
+        test4();
+        test5();
+        test6();
 
         lm.shutdown();
     }
@@ -41,6 +46,64 @@ class LockManagerTest {
         }
     }
 
+    static void test3() {
+        System.out.println("Lock upgrade deadlock test");
+        Transaction t1 = new Transaction(1, "rl c sl 10 wl c ua");
+        Transaction t2 = new Transaction(2, "rl c sl 1000 wl c ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception ignored) {
+        }
+    }
+
+    static void test4() {
+        System.out.println("Async lock test");
+        Transaction t1 = new Transaction(1, "wl d sl 500 ua");
+        Transaction t2 = new Transaction(2, "sl 10 al d sl 1000 ua");
+        t1.start();
+        t2.start();
+        try {
+            t1.join();
+            t2.join();
+        } catch (Exception ignored) {
+        }
+    }
+
+    static void test5() {
+        System.out.println("Escrow lock test");
+        Transaction t1 = new Transaction(1, "el e sl 500 ua");
+        Transaction t2 = new Transaction(2, "sl 10 el e sl 1000 ua");
+        Transaction t3 = new Transaction(3, "sl 20 rl e ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception ignored) {
+        }
+    }
+
+    static void test6() {
+        System.out.println("Async locks deadlock test");
+        Transaction t1 = new Transaction(1, "wl f sl 100 al g al h sl 2000 ua");
+        Transaction t2 = new Transaction(2, "wl g sl 500 wl f ua");
+        Transaction t3 = new Transaction(3, "wl h sl 300 ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try {
+            t1.join();
+            t2.join();
+            t3.join();
+        } catch (Exception ignored) {
+        }
+    }
+
     static class Transaction extends Thread {
 
         int xid;
@@ -66,6 +129,19 @@ class LockManagerTest {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockType.WRITE);
                         System.out.println("Transaction " + xid + " got wl(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("el")) {
+                        String param = st.nextToken();
+                        lm.lock(xid, param, LockType.ESCROW);
+                        System.out.println("Transaction " + xid + " got el(" + param + ")");
+                    } else if (opcode.equalsIgnoreCase("al")) {
+                        final String param = st.nextToken();
+                        lm.lockAsync(xid, param, LockType.WRITE).whenComplete(new BiConsumer<Boolean, Throwable>() {
+                            @Override
+                            public void accept(Boolean granted, Throwable e) {
+                                System.out.println("Transaction " + xid + (e == null ? " got al(" + param + ")" : ": Deadlock..."));
+                            }
+                        });
+                        System.out.println("Transaction " + xid + " requested al(" + param + ")");
                     } else if (opcode.equalsIgnoreCase("ua")) {
                         lm.unlockAll(xid);
                     } else if (opcode.equalsIgnoreCase("sl")) {
@@ -2,11 +2,63 @@ package lockmgr;
 
 /**
  * Created by Dawnwords on 2015/11/2.
+ * <p/>
+ * Intention locks are taken on a table before its rows, and ESCROW for commutative decrements.
  */
 public enum LockType {
-    WRITE, READ;
+    WRITE, READ, INTENTION_READ, INTENTION_WRITE, ESCROW;
 
+    /**
+     * @return if the lock type can be granted together with the given type to different transactions
+     */
     public boolean isShared(LockType type) {
-        return this == READ && type == READ;
+        switch (this) {
+            case READ:
+                return type == READ || type == INTENTION_READ;
+            case INTENTION_READ:
+                return type == READ || type == INTENTION_READ || type == INTENTION_WRITE;
+            case INTENTION_WRITE:
+                return type == INTENTION_READ || type == INTENTION_WRITE;
+            case ESCROW:
+                return type == ESCROW;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return if holding this lock type implies holding the given type
+     */
+    public boolean covers(LockType type) {
+        switch (this) {
+            case WRITE:
+                return true;
+            case READ:
+                return type == READ || type == INTENTION_READ;
+            case INTENTION_WRITE:
+                return type == INTENTION_WRITE || type == INTENTION_READ;
+            case ESCROW:
+                return type == ESCROW;
+            default:
+                return type == INTENTION_READ;
+        }
+    }
+
+    /**
+     * @return the weakest lock type covering both this and the given type,
+     * where READ with INTENTION_WRITE or ESCROW is taken as WRITE
+     */
+    public LockType combine(LockType type) {
+        if (covers(type)) {
+            return this;
+        }
+        return type.covers(this) ? type : WRITE;
+    }
+
+    /**
+     * @return the intention lock type to take on the table before locking a row in this type
+     */
+    public LockType intention() {
+        return this == READ || this == INTENTION_READ ? INTENTION_READ : INTENTION_WRITE;
     }
 }
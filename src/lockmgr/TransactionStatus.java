@@ -2,6 +2,7 @@ package lockmgr;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by Dawnwords on 2015/11/1.
@@ -9,16 +10,20 @@ import java.util.Date;
 public class TransactionStatus implements Comparable<TransactionStatus> {
 
     private static final SimpleDateFormat FORMAT = new SimpleDateFormat("HH:mm:ss SSS");
-    private final Thread waitingThread;
+    private final CompletableFuture<Boolean> future;
+    private final LockEntry lockEntry;
     private long tid;
     private Date lockTime;
-    private LockType lockType;
+    private volatile LockType lockType;
+    private volatile boolean granted, released;
+    private volatile DeadlockException abortCause;
 
-    public TransactionStatus(long tid, Date lockTime, LockType lockType) {
+    public TransactionStatus(long tid, Date lockTime, LockType lockType, LockEntry lockEntry) {
         this.tid = tid;
         this.lockTime = lockTime;
         this.lockType = lockType;
-        this.waitingThread = Thread.currentThread();
+        this.lockEntry = lockEntry;
+        this.future = new CompletableFuture<Boolean>();
     }
 
     public long tid() {
@@ -33,40 +38,79 @@ public class TransactionStatus implements Comparable<TransactionStatus> {
         return lockType;
     }
 
-    public void pending() throws DeadlockException {
-        synchronized (waitingThread) {
-            try {
-                waitingThread.wait(LockManager.DEADLOCK_TIMEOUT);
-                throw new DeadlockException(tid, "Sleep timeout...deadlock.");
-            } catch (InterruptedException ignored) {
-            }
+    public LockEntry lockEntry() {
+        return lockEntry;
+    }
+
+    public boolean granted() {
+        return granted;
+    }
+
+    public boolean released() {
+        return released;
+    }
+
+    public boolean aborted() {
+        return abortCause != null;
+    }
+
+    public DeadlockException abortCause() {
+        return abortCause;
+    }
+
+    public CompletableFuture<Boolean> future() {
+        return future;
+    }
+
+    void release() {
+        released = true;
+    }
+
+    /**
+     * abort the waiting request, which is ignored if the request is already granted
+     */
+    public void abort(String reason) {
+        if (!granted) {
+            abort(new DeadlockException(tid, reason));
         }
     }
 
-    public void activate() {
-        synchronized (waitingThread) {
-            waitingThread.notify();
+    void abort(DeadlockException cause) {
+        // the future may be completed by a grant meanwhile, then the grant wins
+        if (!granted && future.completeExceptionally(cause)) {
+            abortCause = cause;
         }
     }
 
+    void grant() {
+        granted = true;
+    }
+
+    /**
+     * complete the future of the granted request
+     */
+    public void activate() {
+        granted = true;
+        future.complete(true);
+    }
+
     @Override
     public int compareTo(TransactionStatus o) {
         return lockTime.compareTo(o.lockTime);
     }
 
-    public boolean lockUpgrade() {
-        if (lockType == LockType.READ) {
-            lockType = LockType.WRITE;
-            return true;
-        }
-        return false;
+    /**
+     * strengthen a request not granted yet to cover the given lock type as well
+     */
+    void lockUpgrade(LockType lockType) {
+        this.lockType = this.lockType.combine(lockType);
     }
 
     @Override
     public String toString() {
         return String.format("{%d%s:%s@%s}",
                 tid,
-                waitingThread.getState() == Thread.State.WAITING ? "[P]" : "",
+                granted ? "" : "[P]",
                 lockType,
                 FORMAT.format(lockTime));
     }
@@ -0,0 +1,38 @@
+package lockmgr;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Policy choosing the transaction to abort from a deadlock cycle
+ */
+public enum VictimPolicy {
+    /**
+     * the transaction started last, i.e. with the largest tid
+     */
+    YOUNGEST,
+    /**
+     * the transaction holding or requesting the fewest locks, the youngest one if tie
+     */
+    FEWEST_LOCKS;
+
+    /**
+     * @param cycle     the transactions in the deadlock cycle
+     * @param lockCount number of the locks of each transaction
+     * @return the victim transaction
+     */
+    public long choose(List<Long> cycle, Map<Long, Integer> lockCount) {
+        long victim = cycle.get(0);
+        for (long tid : cycle) {
+            if (this == FEWEST_LOCKS) {
+                int count = lockCount.get(tid), victimCount = lockCount.get(victim);
+                if (count < victimCount || count == victimCount && tid > victim) {
+                    victim = tid;
+                }
+            } else if (tid > victim) {
+                victim = tid;
+            }
+        }
+        return victim;
+    }
+}
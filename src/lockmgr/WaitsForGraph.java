@@ -0,0 +1,93 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Waits-for graph of the transactions blocked in the LockManager, whose edges are read from the lock entries,
+ * where a transaction may wait for several requests at once by <code>lockAsync</code>.
+ */
+class WaitsForGraph {
+    private final ConcurrentLongHashMap<Set<TransactionStatus>> waitingStatusMap;
+
+    WaitsForGraph() {
+        this.waitingStatusMap = new ConcurrentLongHashMap<Set<TransactionStatus>>();
+    }
+
+    void startWaiting(TransactionStatus status) {
+        while (true) {
+            Set<TransactionStatus> statuses = waitingStatusMap.get(status.tid());
+            if (statuses == null) {
+                statuses = Collections.newSetFromMap(new IdentityHashMap<TransactionStatus, Boolean>());
+                Set<TransactionStatus> old = waitingStatusMap.putIfAbsent(status.tid(), statuses);
+                if (old != null) {
+                    statuses = old;
+                }
+            }
+            synchronized (statuses) {
+                // unless removed from the map by the last request stopping waiting, then retry
+                if (waitingStatusMap.get(status.tid()) == statuses) {
+                    statuses.add(status);
+                    return;
+                }
+            }
+        }
+    }
+
+    void stopWaiting(TransactionStatus status) {
+        Set<TransactionStatus> statuses = waitingStatusMap.get(status.tid());
+        if (statuses == null) {
+            return;
+        }
+        synchronized (statuses) {
+            if (statuses.remove(status) && statuses.isEmpty()) {
+                waitingStatusMap.remove(status.tid(), statuses);
+            }
+        }
+    }
+
+    /**
+     * @return the requests the transaction is waiting for
+     */
+    List<TransactionStatus> waitingStatuses(long tid) {
+        Set<TransactionStatus> statuses = waitingStatusMap.get(tid);
+        if (statuses == null) {
+            return Collections.emptyList();
+        }
+        synchronized (statuses) {
+            return new ArrayList<TransactionStatus>(statuses);
+        }
+    }
+
+    /**
+     * @return the transactions in a cycle through the given one skipping the aborted, or null if none
+     */
+    List<Long> findCycle(long tid) {
+        List<Long> path = new ArrayList<Long>();
+        return findCycle(tid, tid, path, new HashSet<Long>()) ? path : null;
+    }
+
+    private boolean findCycle(long start, long tid, List<Long> path, Set<Long> visited) {
+        path.add(tid);
+        for (TransactionStatus status : waitingStatuses(tid)) {
+            if (status.aborted()) {
+                // an aborted request no longer waits, though it has not left the graph yet
+                continue;
+            }
+            for (long blocker : status.lockEntry().blockers(status)) {
+                if (blocker == start) {
+                    return true;
+                }
+                if (visited.add(blocker) && findCycle(start, blocker, path, visited)) {
+                    return true;
+                }
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+}
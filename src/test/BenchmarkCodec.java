@@ -0,0 +1,113 @@
+package test;
+
+import transaction.bean.*;
+import util.IOUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encode and decode cost and size of <code>Codecs</code> against Java serialization,
+ * for a single item of each bean as in a redo log record, and for a whole table as in a checkpoint.
+ */
+public class BenchmarkCodec {
+    private static final int ROUNDS = 200000;
+    private static final int TABLE_SIZE = 10000;
+
+    public static void main(String[] args) throws IOException {
+        Object[] items = {
+                new Flight("MU5100", 1200, 300, 299),
+                new Car("Shanghai", 300, 50, 48),
+                new Hotel("Shanghai", 500, 120, 100),
+                new Customer("Dawnwords"),
+                new Reservation("Dawnwords", ReservationType.FLIGHT, "MU5100"),
+                new ReservationKey("Dawnwords", ReservationType.FLIGHT, "MU5100")
+        };
+        // warm up both paths before measuring
+        for (Object item : items) {
+            measure(item, ROUNDS / 10);
+        }
+        System.out.printf("%-16s %28s %28s%n", "", "serialization", "codec");
+        for (Object item : items) {
+            long[] result = measure(item, ROUNDS);
+            System.out.printf("%-16s %5dB %6.0fns/op %6.0fns/op %5dB %6.0fns/op %6.0fns/op%n",
+                    item.getClass().getSimpleName(),
+                    result[0], result[1] / (double) ROUNDS, result[2] / (double) ROUNDS,
+                    result[3], result[4] / (double) ROUNDS, result[5] / (double) ROUNDS);
+        }
+
+        ArrayList<ResourceItem<String>> table = new ArrayList<ResourceItem<String>>(TABLE_SIZE);
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table.add(new Flight("MU" + i, 1000 + i, 300, 300 - i % 300));
+        }
+        for (int i = 0; i < 5; i++) {
+            measureTable(table, false);
+        }
+        measureTable(table, true);
+    }
+
+    /**
+     * @return size, encode and decode time of serialization, and then those of the codec
+     */
+    private static long[] measure(Object item, int rounds) throws IOException {
+        long[] result = new long[6];
+        byte[] serialized = IOUtil.toBytes(item);
+        byte[] encoded = Codecs.toBytes(item);
+        result[0] = serialized.length;
+        result[3] = encoded.length;
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            serialized = IOUtil.toBytes(item);
+        }
+        result[1] = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            IOUtil.fromBytes(serialized);
+        }
+        result[2] = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            encoded = Codecs.toBytes(item);
+        }
+        result[4] = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Codecs.fromBytes(encoded);
+        }
+        result[5] = System.nanoTime() - begin;
+
+        Object decoded = Codecs.fromBytes(encoded);
+        if (!decoded.toString().equals(item.toString())) {
+            throw new AssertionError("decoded differently: " + item);
+        }
+        return result;
+    }
+
+    private static void measureTable(ArrayList<ResourceItem<String>> table, boolean print) throws IOException {
+        long begin = System.nanoTime();
+        byte[] serialized = IOUtil.toBytes(table);
+        long serialize = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        List<ResourceItem<String>> deserialized = IOUtil.fromBytes(serialized);
+        long deserialize = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        byte[] encoded = Codecs.listToBytes(table);
+        long encode = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        List<ResourceItem<String>> decoded = Codecs.listFromBytes(encoded);
+        long decode = System.nanoTime() - begin;
+
+        if (deserialized.size() != decoded.size()) {
+            throw new AssertionError("decoded " + decoded.size() + " of " + deserialized.size());
+        }
+        if (print) {
+            System.out.printf("table of %d flights: serialization %dB %.1fms/%.1fms, codec %dB %.1fms/%.1fms%n",
+                    table.size(), serialized.length, serialize / 1e6, deserialize / 1e6,
+                    encoded.length, encode / 1e6, decode / 1e6);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package test;
+
+/**
+ * Read latency benchmark of the queries, including a price range by <code>queryFlightPrice</code> per flight
+ * against <code>queryFlightsInRange</code>.
+ */
+public class BenchmarkQuery extends TestClient {
+    private static final int FLIGHTS = 200;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        new BenchmarkQuery().run();
+    }
+
+    @Override
+    protected void run() {
+        try {
+            long xid = wc().start();
+            String prefix = "BQ" + xid + "-";
+            for (int i = 0; i < FLIGHTS; i++) {
+                wc().addFlight(xid, prefix + i, 100, 100 + i);
+            }
+            assertTrue("New customer", wc().newCustomer(xid, prefix));
+            for (int i = 0; i < 10; i++) {
+                wc().reserveFlight(xid, prefix, prefix + i);
+            }
+            assertTrue("Commit", wc().commit(xid));
+
+            long flight = 0, bill = 0, loop = 0, range = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                xid = wc().start();
+                long begin = System.nanoTime();
+                for (int i = 0; i < FLIGHTS; i++) {
+                    wc().queryFlight(xid, prefix + i);
+                }
+                flight += System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                wc().queryCustomerBill(xid, prefix);
+                bill += System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                int found = 0;
+                for (int i = 0; i < FLIGHTS; i++) {
+                    int price = wc().queryFlightPrice(xid, prefix + i);
+                    if (price >= 100 && price < 100 + FLIGHTS / 4) {
+                        found++;
+                    }
+                }
+                loop += System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                found -= wc().queryFlightsInRange(xid, 100, 100 + FLIGHTS / 4 - 1, 0).size();
+                range += System.nanoTime() - begin;
+                if (found != 0) {
+                    System.out.println("[Fail]Range query differs from the loop by " + found);
+                }
+                wc().commit(xid);
+            }
+            System.out.printf("queryFlight: %.1fus/op, queryCustomerBill: %.1fus/op%n",
+                    flight / 1000.0 / ROUNDS / FLIGHTS, bill / 1000.0 / ROUNDS);
+            System.out.printf("price range by queryFlightPrice: %.1fus/op, by queryFlightsInRange: %.1fus/op%n",
+                    loop / 1000.0 / ROUNDS, range / 1000.0 / ROUNDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
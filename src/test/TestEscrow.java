@@ -0,0 +1,45 @@
+package test;
+
+/**
+ * Escrow reservations: reservations of the same flight do not block each other,
+ * as long as the seats available cover all of them, and an abort gives the seats back.
+ */
+public class TestEscrow extends TestClient {
+    public static void main(String[] args) {
+        new TestEscrow().test();
+    }
+
+    @Override
+    protected void run() {
+        try {
+            long xid = wc().start();
+            String flightNum = "ES" + xid;
+            String custName = "ES" + xid;
+            assertTrue("Add flight", wc().addFlight(xid, flightNum, 2, 500));
+            for (int i = 1; i <= 3; i++) {
+                assertTrue("Add customer " + i, wc().newCustomer(xid, custName + i));
+            }
+            assertTrue("Commit", wc().commit(xid));
+
+            long first = wc().start();
+            long second = wc().start();
+            long third = wc().start();
+            assertTrue("First reserve", wc().reserveFlight(first, custName + "1", flightNum));
+            assertTrue("Second reserve not blocked", wc().reserveFlight(second, custName + "2", flightNum));
+            assertTrue("Third reserve exceeds seats", !wc().reserveFlight(third, custName + "3", flightNum));
+            wc().abort(first);
+            assertTrue("Third reserve after abort", wc().reserveFlight(third, custName + "3", flightNum));
+            assertTrue("Second commit", wc().commit(second));
+            assertTrue("Third commit", wc().commit(third));
+
+            xid = wc().start();
+            assertEqual("Seats", wc().queryFlight(xid, flightNum), 0);
+            assertEqual("Bill of the first", wc().queryCustomerBill(xid, custName + "1"), 0);
+            assertEqual("Bill of the second", wc().queryCustomerBill(xid, custName + "2"), 500);
+            assertEqual("Bill of the third", wc().queryCustomerBill(xid, custName + "3"), 500);
+            assertTrue("Commit", wc().commit(xid));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
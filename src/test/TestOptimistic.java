@@ -0,0 +1,66 @@
+package test;
+
+import transaction.exception.TransactionAbortedException;
+
+/**
+ * Optimistic concurrency control with <code>rm.concurrencyControl=OCC</code>.
+ */
+public class TestOptimistic extends TestClient {
+    public static void main(String[] args) {
+        new TestOptimistic().test();
+    }
+
+    @Override
+    protected void run() {
+        try {
+            long first = wc().start();
+            long second = wc().start();
+            String flightNum = "OC" + first;
+            assertTrue("First add", wc().addFlight(first, flightNum, 100, 500));
+            assertTrue("Second add not blocked", wc().addFlight(second, flightNum, 50, 400));
+            assertTrue("First commit", commit(first));
+            assertTrue("Second commit fails validation", !commit(second));
+
+            long xid = wc().start();
+            assertEqual("Seats", wc().queryFlight(xid, flightNum), 100);
+            assertEqual("Price", wc().queryFlightPrice(xid, flightNum), 500);
+            assertTrue("Commit", wc().commit(xid));
+
+            xid = wc().start();
+            String custName = "OC" + first;
+            assertTrue("Add customer", wc().newCustomer(xid, custName));
+            assertTrue("Add rooms", wc().addRooms(xid, flightNum, 1, 300));
+            assertTrue("Commit", wc().commit(xid));
+
+            long reserver = wc().start();
+            long deleter = wc().start();
+            assertTrue("Reserve room", wc().reserveRoom(reserver, custName, flightNum));
+            assertTrue("Delete room not blocked", wc().deleteRooms(deleter, flightNum, 1));
+            assertTrue("Delete commit", commit(deleter));
+            assertTrue("Reserve of no room fails validation", !commit(reserver));
+
+            reserver = wc().start();
+            deleter = wc().start();
+            assertTrue("Reserve flight", wc().reserveFlight(reserver, custName, flightNum));
+            assertTrue("Delete flight not blocked", wc().deleteFlight(deleter, flightNum));
+            assertTrue("Delete commit", commit(deleter));
+            assertTrue("Reserve of deleted flight fails validation", !commit(reserver));
+
+            xid = wc().start();
+            assertEqual("Flight deleted", wc().queryFlight(xid, flightNum), -1);
+            assertEqual("Rooms", wc().queryRooms(xid, flightNum), 0);
+            assertEqual("Bill", wc().queryCustomerBill(xid, custName), 0);
+            assertTrue("Commit", wc().commit(xid));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean commit(long xid) throws Exception {
+        try {
+            return wc().commit(xid);
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+    }
+}
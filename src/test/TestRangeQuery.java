@@ -0,0 +1,61 @@
+package test;
+
+import java.util.List;
+
+/**
+ * Range queries on the price and the availability, which see the items added, reserved and deleted
+ * by the transaction itself and by the transactions committed before.
+ */
+public class TestRangeQuery extends TestClient {
+    public static void main(String[] args) {
+        new TestRangeQuery().test();
+    }
+
+    @Override
+    protected void run() {
+        try {
+            long xid = wc().start();
+            String prefix = "RQ" + xid;
+            // a price band of its own, apart from the items of the other tests
+            int base = 1000000 + (int) (xid % 1000) * 100;
+            for (int i = 0; i < 5; i++) {
+                assertTrue("Add flight", wc().addFlight(xid, prefix + "-" + i, 1 + i, base + 10 * i));
+            }
+            assertTrue("Add hotel", wc().addRooms(xid, prefix, 3, base));
+            assertTrue("Add car", wc().addCars(xid, prefix, 3, base));
+            assertTrue("Add customer", wc().newCustomer(xid, prefix));
+            assertEqual("Own flights in range", wc().queryFlightsInRange(xid, base + 10, base + 30, 0).size(), 3);
+            assertTrue("Commit", wc().commit(xid));
+
+            xid = wc().start();
+            assertEqual("All flights", wc().queryFlightsInRange(xid, base, base + 40, 0).size(), 5);
+            assertEqual("Price range", wc().queryFlightsInRange(xid, base + 10, base + 30, 0).size(), 3);
+            assertEqual("Empty range", wc().queryFlightsInRange(xid, base + 1, base + 9, 0).size(), 0);
+            List<String> flights = wc().queryFlightsInRange(xid, base, base + 40, 4);
+            assertEqual("Seats of at least 4", flights.size(), 2);
+            assertTrue("Flight of 4 seats", flights.contains(prefix + "-3"));
+            assertEqual("Rooms in range", wc().queryRoomsInRange(xid, base, base, 1).size(), 1);
+            assertEqual("Cars in range", wc().queryCarsInRange(xid, base, base, 1).size(), 1);
+            assertEqual("Cars out of range", wc().queryCarsInRange(xid, base, base, 4).size(), 0);
+            assertTrue("Commit", wc().commit(xid));
+
+            xid = wc().start();
+            assertTrue("Reserve flight", wc().reserveFlight(xid, prefix, prefix + "-3"));
+            assertEqual("Own reservation", wc().queryFlightsInRange(xid, base, base + 40, 4).size(), 1);
+            assertTrue("Commit", wc().commit(xid));
+
+            xid = wc().start();
+            assertEqual("Seats after reservation", wc().queryFlightsInRange(xid, base, base + 40, 4).size(), 1);
+            assertEqual("Seats of at least 3", wc().queryFlightsInRange(xid, base, base + 40, 3).size(), 3);
+            assertTrue("Delete flight", wc().deleteFlight(xid, prefix + "-0"));
+            assertEqual("Own deletion", wc().queryFlightsInRange(xid, base, base + 40, 0).size(), 4);
+            wc().abort(xid);
+
+            xid = wc().start();
+            assertEqual("Deletion aborted", wc().queryFlightsInRange(xid, base, base + 40, 0).size(), 5);
+            assertTrue("Commit", wc().commit(xid));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package test;
+
+/**
+ * Snapshot queries with <code>wc.snapshotQueries=true</code>:
+ * a query neither blocks on the WRITE lock of another transaction nor sees its changes committed later.
+ */
+public class TestSnapshotQuery extends TestClient {
+    public static void main(String[] args) {
+        new TestSnapshotQuery().test();
+    }
+
+    @Override
+    protected void run() {
+        try {
+            long xid = wc().start();
+            String flightNum = "SQ" + xid;
+            String custName = "SQ" + xid;
+            assertTrue("Add flight", wc().addFlight(xid, flightNum, 100, 500));
+            assertTrue("Add customer", wc().newCustomer(xid, custName));
+            assertTrue("Commit", wc().commit(xid));
+
+            long writer = wc().start();
+            assertTrue("Reserve flight", wc().reserveFlight(writer, custName, flightNum));
+
+            long reader = wc().start();
+            assertEqual("Not blocked by the writer", wc().queryFlight(reader, flightNum), 100);
+            assertEqual("Bill before reservation", wc().queryCustomerBill(reader, custName), 0);
+
+            assertTrue("Writer commit", wc().commit(writer));
+            assertEqual("Repeatable seats", wc().queryFlight(reader, flightNum), 100);
+            assertEqual("Repeatable bill", wc().queryCustomerBill(reader, custName), 0);
+            assertTrue("Reader commit", wc().commit(reader));
+
+            xid = wc().start();
+            assertEqual("New seats", wc().queryFlight(xid, flightNum), 99);
+            assertEqual("New bill", wc().queryCustomerBill(xid, custName), 500);
+            assertTrue("Commit", wc().commit(xid));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
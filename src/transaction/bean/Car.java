@@ -1,9 +1,11 @@
 package transaction.bean;
 
+import transaction.exception.InvalidIndexException;
+
 /**
  * Created by Dawnwords on 2015/12/17.
  */
-public class Car extends ResourceItem<String> {
+public class Car extends ResourceItem<String> implements Reservable, Ranged {
 
     private String location;
     private int price;
@@ -31,6 +33,25 @@ public class Car extends ResourceItem<String> {
         return location;
     }
 
+    @Override
+    public String[] rangeColumns() {
+        return new String[]{"price", "numCars", "numAvail"};
+    }
+
+    @Override
+    public int rangeValue(String column) {
+        if ("price".equals(column)) {
+            return price;
+        }
+        if ("numCars".equals(column)) {
+            return numCars;
+        }
+        if ("numAvail".equals(column)) {
+            return numAvail;
+        }
+        throw new InvalidIndexException(column);
+    }
+
     @Override
     public String getKey() {
         return location;
@@ -48,6 +69,7 @@ public class Car extends ResourceItem<String> {
         return numCars;
     }
 
+    @Override
     public int numAvail() {
         return numAvail;
     }
@@ -56,6 +78,11 @@ public class Car extends ResourceItem<String> {
         numAvail--;
     }
 
+    @Override
+    public void decreaseAvail(int amount) {
+        numAvail -= amount;
+    }
+
     @Override
     public Car clone() {
         Car car = new Car(location, price, numCars, numAvail);
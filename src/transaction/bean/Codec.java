@@ -0,0 +1,20 @@
+package transaction.bean;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoder and decoder of one type, registered in <code>Codecs</code> under a tag.
+ */
+public interface Codec<T> {
+    int version();
+
+    /**
+     * @throws java.nio.BufferOverflowException if the buffer is too small, where the caller retries a larger one
+     */
+    void encode(T value, ByteBuffer out);
+
+    /**
+     * @param version the version of the codec which encoded the value
+     */
+    T decode(ByteBuffer in, int version);
+}
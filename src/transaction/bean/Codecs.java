@@ -0,0 +1,282 @@
+package transaction.bean;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the binary codecs of the beans, writing a value as <code>[tag][version][payload]</code>.
+ */
+public class Codecs {
+    private static final byte NULL = 0;
+    private static final int MAGIC = 0x52434331;
+
+    private static final ConcurrentHashMap<Class<?>, Entry<?>> BY_CLASS = new ConcurrentHashMap<Class<?>, Entry<?>>();
+    private static volatile Entry<?>[] byTag = new Entry<?>[128];
+
+    static {
+        register(1, String.class, new Codec<String>() {
+            @Override
+            public int version() {
+                return 1;
+            }
+
+            @Override
+            public void encode(String value, ByteBuffer out) {
+                putString(out, value);
+            }
+
+            @Override
+            public String decode(ByteBuffer in, int version) {
+                return getString(in);
+            }
+        });
+        register(2, Flight.class, new ItemCodec<Flight>() {
+            @Override
+            protected void encodeColumns(Flight value, ByteBuffer out) {
+                putString(out, value.flightNum());
+                out.putInt(value.price()).putInt(value.numSeats()).putInt(value.numAvail());
+            }
+
+            @Override
+            protected Flight decodeColumns(ByteBuffer in, int version) {
+                return new Flight(getString(in), in.getInt(), in.getInt(), in.getInt());
+            }
+        });
+        register(3, Car.class, new ItemCodec<Car>() {
+            @Override
+            protected void encodeColumns(Car value, ByteBuffer out) {
+                putString(out, value.location());
+                out.putInt(value.price()).putInt(value.numCars()).putInt(value.numAvail());
+            }
+
+            @Override
+            protected Car decodeColumns(ByteBuffer in, int version) {
+                return new Car(getString(in), in.getInt(), in.getInt(), in.getInt());
+            }
+        });
+        register(4, Hotel.class, new ItemCodec<Hotel>() {
+            @Override
+            protected void encodeColumns(Hotel value, ByteBuffer out) {
+                putString(out, value.location());
+                out.putInt(value.price()).putInt(value.numRooms()).putInt(value.numAvail());
+            }
+
+            @Override
+            protected Hotel decodeColumns(ByteBuffer in, int version) {
+                return new Hotel(getString(in), in.getInt(), in.getInt(), in.getInt());
+            }
+        });
+        register(5, Customer.class, new ItemCodec<Customer>() {
+            @Override
+            protected void encodeColumns(Customer value, ByteBuffer out) {
+                putString(out, value.getKey());
+            }
+
+            @Override
+            protected Customer decodeColumns(ByteBuffer in, int version) {
+                return new Customer(getString(in));
+            }
+        });
+        register(6, Reservation.class, new ItemCodec<Reservation>() {
+            @Override
+            protected void encodeColumns(Reservation value, ByteBuffer out) {
+                putString(out, value.custName());
+                out.put((byte) value.resvType().ordinal());
+                putString(out, value.resvKey());
+            }
+
+            @Override
+            protected Reservation decodeColumns(ByteBuffer in, int version) {
+                return new Reservation(getString(in), ReservationType.values()[in.get()], getString(in));
+            }
+        });
+        register(7, ReservationKey.class, new Codec<ReservationKey>() {
+            @Override
+            public int version() {
+                return 1;
+            }
+
+            @Override
+            public void encode(ReservationKey value, ByteBuffer out) {
+                putString(out, value.custName());
+                out.put((byte) value.resvType().ordinal());
+                putString(out, value.resvKey());
+            }
+
+            @Override
+            public ReservationKey decode(ByteBuffer in, int version) {
+                return new ReservationKey(getString(in), ReservationType.values()[in.get()], getString(in));
+            }
+        });
+    }
+
+    /**
+     * register the codec of a type, which is invoked before any value of the type is written or read
+     *
+     * @param tag of 1 to 127, which is written to identify the type and must never change
+     */
+    public static synchronized <T> void register(int tag, Class<T> type, Codec<T> codec) {
+        if (tag <= NULL || tag >= byTag.length || byTag[tag] != null || BY_CLASS.containsKey(type)) {
+            throw new IllegalArgumentException("tag " + tag + " or " + type + " is registered or invalid");
+        }
+        Entry<T> entry = new Entry<T>(tag, type, codec);
+        Entry<?>[] tags = byTag.clone();
+        tags[tag] = entry;
+        byTag = tags;
+        BY_CLASS.put(type, entry);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the type of the value is not registered
+     */
+    public static void write(Object value, ByteBuffer out) {
+        if (value == null) {
+            out.put(NULL);
+            return;
+        }
+        Entry<?> entry = BY_CLASS.get(value.getClass());
+        if (entry == null) {
+            throw new IllegalArgumentException("no codec of " + value.getClass());
+        }
+        write(entry, value, out);
+    }
+
+    private static <T> void write(Entry<T> entry, Object value, ByteBuffer out) {
+        out.put(entry.tag).put((byte) entry.codec.version());
+        entry.codec.encode(entry.type.cast(value), out);
+    }
+
+    public static <T> T read(ByteBuffer in) {
+        byte tag = in.get();
+        if (tag == NULL) {
+            return null;
+        }
+        Entry<?> entry = tag > 0 ? byTag[tag] : null;
+        if (entry == null) {
+            throw new IllegalArgumentException("no codec of tag " + tag);
+        }
+        // the caller names the type it expects, which is checked on its first use
+        @SuppressWarnings("unchecked")
+        T value = (T) entry.codec.decode(in, in.get());
+        return value;
+    }
+
+    public static byte[] toBytes(Object value) {
+        for (int size = 64; ; size <<= 1) {
+            try {
+                ByteBuffer out = ByteBuffer.allocate(size);
+                write(value, out);
+                return toArray(out);
+            } catch (BufferOverflowException ignored) {
+            }
+        }
+    }
+
+    public static <T> T fromBytes(byte[] data) {
+        return read(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return <code>[MAGIC][count]([value])*</code>
+     */
+    public static byte[] listToBytes(Collection<?> values) {
+        for (int size = Math.max(64, values.size() * 32); ; size <<= 1) {
+            try {
+                ByteBuffer out = ByteBuffer.allocate(size);
+                out.putInt(MAGIC).putInt(values.size());
+                for (Object value : values) {
+                    write(value, out);
+                }
+                return toArray(out);
+            } catch (BufferOverflowException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return the values written by <code>listToBytes()</code>, or null if the data is not written by it
+     */
+    public static <T> List<T> listFromBytes(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        if (data.length < 8 || in.getInt() != MAGIC) {
+            return null;
+        }
+        int count = in.getInt();
+        List<T> result = new ArrayList<T>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(Codecs.<T>read(in));
+        }
+        return result;
+    }
+
+    public static void putString(ByteBuffer out, String value) {
+        if (value == null) {
+            out.putInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    public static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] toArray(ByteBuffer out) {
+        out.flip();
+        byte[] result = new byte[out.remaining()];
+        out.get(result);
+        return result;
+    }
+
+    private static class Entry<T> {
+        private final byte tag;
+        private final Class<T> type;
+        private final Codec<T> codec;
+
+        Entry(int tag, Class<T> type, Codec<T> codec) {
+            this.tag = (byte) tag;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * codec of a ResourceItem, which writes the deleted flag before the columns
+     */
+    private static abstract class ItemCodec<T extends ResourceItem<?>> implements Codec<T> {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public void encode(T value, ByteBuffer out) {
+            out.put((byte) (value.isDeleted() ? 1 : 0));
+            encodeColumns(value, out);
+        }
+
+        @Override
+        public T decode(ByteBuffer in, int version) {
+            boolean deleted = in.get() != 0;
+            T item = decodeColumns(in, version);
+            item.isDeleted = deleted;
+            return item;
+        }
+
+        protected abstract void encodeColumns(T value, ByteBuffer out);
+
+        protected abstract T decodeColumns(ByteBuffer in, int version);
+    }
+}
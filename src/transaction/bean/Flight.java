@@ -1,9 +1,11 @@
 package transaction.bean;
 
+import transaction.exception.InvalidIndexException;
+
 /**
  * Created by Dawnwords on 2015/12/17.
  */
-public class Flight extends ResourceItem<String> {
+public class Flight extends ResourceItem<String> implements Reservable, Ranged {
 
     private String flightNum;
     private int price;
@@ -29,6 +31,7 @@ public class Flight extends ResourceItem<String> {
         return numSeats;
     }
 
+    @Override
     public int numAvail() {
         return numAvail;
     }
@@ -37,6 +40,11 @@ public class Flight extends ResourceItem<String> {
         numAvail--;
     }
 
+    @Override
+    public void decreaseAvail(int amount) {
+        numAvail -= amount;
+    }
+
     @Override
     public String[] getColumnNames() {
         return new String[]{"flightNum", "price", "numSeats", "numAvail"};
@@ -47,6 +55,25 @@ public class Flight extends ResourceItem<String> {
         return new String[]{flightNum, String.valueOf(price), String.valueOf(numSeats), String.valueOf(numAvail)};
     }
 
+    @Override
+    public String[] rangeColumns() {
+        return new String[]{"price", "numSeats", "numAvail"};
+    }
+
+    @Override
+    public int rangeValue(String column) {
+        if ("price".equals(column)) {
+            return price;
+        }
+        if ("numSeats".equals(column)) {
+            return numSeats;
+        }
+        if ("numAvail".equals(column)) {
+            return numAvail;
+        }
+        throw new InvalidIndexException(column);
+    }
+
     @Override
     public String getKey() {
         return flightNum;
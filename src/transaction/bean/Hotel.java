@@ -1,9 +1,11 @@
 package transaction.bean;
 
+import transaction.exception.InvalidIndexException;
+
 /**
  * Created by Dawnwords on 2015/12/17.
  */
-public class Hotel extends ResourceItem<String> {
+public class Hotel extends ResourceItem<String> implements Reservable, Ranged {
     private String location;
     private int price;
     private int numRooms;
@@ -28,6 +30,7 @@ public class Hotel extends ResourceItem<String> {
         return numRooms;
     }
 
+    @Override
     public int numAvail() {
         return numAvail;
     }
@@ -36,6 +39,11 @@ public class Hotel extends ResourceItem<String> {
         numAvail--;
     }
 
+    @Override
+    public void decreaseAvail(int amount) {
+        numAvail -= amount;
+    }
+
     @Override
     public String[] getColumnNames() {
         return new String[]{"location", "price", "numSeats", "numAvail"};
@@ -46,6 +54,25 @@ public class Hotel extends ResourceItem<String> {
         return new String[]{location, String.valueOf(price), String.valueOf(numRooms), String.valueOf(numAvail)};
     }
 
+    @Override
+    public String[] rangeColumns() {
+        return new String[]{"price", "numSeats", "numAvail"};
+    }
+
+    @Override
+    public int rangeValue(String column) {
+        if ("price".equals(column)) {
+            return price;
+        }
+        if ("numSeats".equals(column)) {
+            return numRooms;
+        }
+        if ("numAvail".equals(column)) {
+            return numAvail;
+        }
+        throw new InvalidIndexException(column);
+    }
+
     @Override
     public String getKey() {
         return location;
@@ -0,0 +1,9 @@
+package transaction.bean;
+
+/**
+ * A key of an item which carries the index value of the item, i.e. <code>ResourceItem.getIndex()</code>,
+ * where the key of an item not implementing it is the index value itself.
+ */
+public interface IndexedKey {
+    Object indexValue();
+}
@@ -0,0 +1,59 @@
+package transaction.bean;
+
+import java.io.Serializable;
+
+/**
+ * A closed range of the values of an int column of <code>Ranged</code> items, e.g. the price in [100, 200].
+ */
+public class Range implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String column;
+    private final int low;
+    private final int high;
+
+    public Range(String column, int low, int high) {
+        this.column = column;
+        this.low = low;
+        this.high = high;
+    }
+
+    public static Range atLeast(String column, int low) {
+        return new Range(column, low, Integer.MAX_VALUE);
+    }
+
+    public static Range atMost(String column, int high) {
+        return new Range(column, Integer.MIN_VALUE, high);
+    }
+
+    public String column() {
+        return column;
+    }
+
+    public int low() {
+        return low;
+    }
+
+    public int high() {
+        return high;
+    }
+
+    /**
+     * @throws transaction.exception.InvalidIndexException if the column is not an int column of the item
+     */
+    public boolean matches(ResourceItem<?> item) {
+        if (!(item instanceof Ranged)) {
+            return false;
+        }
+        int value = ((Ranged) item).rangeValue(column);
+        return low <= value && value <= high;
+    }
+
+    @Override
+    public String toString() {
+        return "Range{" +
+                "column='" + column + '\'' +
+                ", low=" + low +
+                ", high=" + high +
+                '}';
+    }
+}
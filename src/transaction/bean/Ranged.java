@@ -0,0 +1,16 @@
+package transaction.bean;
+
+/**
+ * A resource item with int columns, each of which a RM keeps in an ordered index for range queries.
+ */
+public interface Ranged {
+    /**
+     * @return the names of the int columns, as in <code>getColumnNames()</code>
+     */
+    String[] rangeColumns();
+
+    /**
+     * @throws transaction.exception.InvalidIndexException if the column is not one of <code>rangeColumns()</code>
+     */
+    int rangeValue(String column);
+}
@@ -0,0 +1,11 @@
+package transaction.bean;
+
+/**
+ * A resource item with a number available to reserve,
+ * which a RM decreases by escrow without locking the item exclusively.
+ */
+public interface Reservable {
+    int numAvail();
+
+    void decreaseAvail(int amount);
+}
@@ -14,7 +14,7 @@ import java.io.Serializable;
  *         TODO To change the template for this generated type comment go to Window -
  *         Preferences - Java - Code Style - Code Templates
  */
-public class ReservationKey implements Serializable {
+public class ReservationKey implements Serializable, IndexedKey {
     private String custName;
 
     private ReservationType resvType;
@@ -39,6 +39,11 @@ public class ReservationKey implements Serializable {
         return resvKey;
     }
 
+    @Override
+    public Object indexValue() {
+        return custName;
+    }
+
     public boolean equals(Object o) {
         if (o == null || !(o instanceof ReservationKey))
             return false;
@@ -2,8 +2,10 @@ package transaction.core;
 
 import transaction.exception.ResourceManagerUnaccessibleException;
 import transaction.exception.TransactionManagerUnaccessibleException;
+import util.GroupCommitLog;
 import util.Log;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.rmi.Naming;
 import java.rmi.Remote;
@@ -38,7 +40,7 @@ public abstract class Host extends UnicastRemoteObject {
 
     public void setDieTime(DieTime dieTime) throws RemoteException {
         this.dieTime = dieTime;
-        Log.i("Die time set to : " + dieTime);
+        Log.i("Die time set to : %s", dieTime);
     }
 
     public String hostName() {
@@ -50,7 +52,7 @@ public abstract class Host extends UnicastRemoteObject {
         try {
             LocateRegistry.createRegistry(getPort(properties, myRMIName));
             Naming.rebind(getRMI(properties, myRMIName), this);
-            Log.i(myRMIName + " bound");
+            Log.i("%s bound", myRMIName);
         } catch (Exception e) {
             throw new RuntimeException(myRMIName + " not bound:" + e);
         }
@@ -76,6 +78,22 @@ public abstract class Host extends UnicastRemoteObject {
         return Integer.parseInt(prop.getProperty(who.port()));
     }
 
+    /**
+     * @return a group commit log configured by <code>log.batchSize</code> and <code>log.maxWait</code>
+     */
+    protected GroupCommitLog newLog(File file) {
+        return new GroupCommitLog(file, getIntProperty("log.batchSize", 64), getIntProperty("log.maxWait", 1));
+    }
+
+    protected int getIntProperty(String key, int defaultValue) {
+        return Integer.parseInt(getProperty(key, String.valueOf(defaultValue)));
+    }
+
+    protected String getProperty(String key, String defaultValue) {
+        String value = loadProperties().getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
     private Properties loadProperties() {
         Properties prop = new Properties();
         try {
@@ -112,5 +130,9 @@ public abstract class Host extends UnicastRemoteObject {
         public String ip() {
             return name + ".ip";
         }
+
+        public String property(String property) {
+            return name + "." + property;
+        }
     }
 }
@@ -1,6 +1,7 @@
 package transaction.core;
 
 import lockmgr.DeadlockException;
+import transaction.bean.Range;
 import transaction.bean.ResourceItem;
 import transaction.exception.InvalidIndexException;
 
@@ -51,6 +52,54 @@ public interface ResourceManager<K> extends Remote {
      */
     List<ResourceItem<K>> query(long xid, String indexName, Object indexVal) throws DeadlockException, RemoteException;
 
+    /**
+     * Query the <code>ResourceItem</code>s related to the transaction with the given xid
+     * whose int columns are in all the given ranges, locking the whole table in READ
+     *
+     * @param xid    transaction id
+     * @param ranges the ranges of the int columns, e.g. the price in [a, b] and numAvail of at least n
+     * @return the query result of <code>ResourceItem</code>
+     * @throws DeadlockException     if a deadlock is detected
+     * @throws InvalidIndexException if a column is not an int column of the items
+     * @throws RemoteException       if one of TM and RMs fails or exceptions occurs in RMI
+     */
+    List<ResourceItem<K>> queryRange(long xid, Range... ranges) throws DeadlockException, RemoteException;
+
+    /**
+     * Query the <code>ResourceItem</code> with the given key value without locking it,
+     * in the snapshot taken on the first snapshot query of the transaction, over its own changes
+     *
+     * @param xid transaction id
+     * @param key key of the result ResourceItem to query
+     * @return the query result of <code>ResourceItem</code>
+     * @throws RemoteException if one of TM and RMs fails or exceptions occurs in RMI
+     */
+    ResourceItem<K> querySnapshot(long xid, K key) throws RemoteException;
+
+    /**
+     * Query the <code>ResourceItem</code>s with the given index value without locking them,
+     * in the snapshot of the transaction like <code>querySnapshot(xid, key)</code>
+     *
+     * @param xid       transaction id
+     * @param indexName the indexName to query
+     * @param indexVal  the index value to query
+     * @return the query result of <code>ResourceItem</code>
+     * @throws RemoteException if one of TM and RMs fails or exceptions occurs in RMI
+     */
+    List<ResourceItem<K>> querySnapshot(long xid, String indexName, Object indexVal) throws RemoteException;
+
+    /**
+     * Query the <code>ResourceItem</code>s whose int columns are in all the given ranges without locking them,
+     * in the snapshot of the transaction like <code>querySnapshot(xid, key)</code>
+     *
+     * @param xid    transaction id
+     * @param ranges the ranges of the int columns
+     * @return the query result of <code>ResourceItem</code>
+     * @throws InvalidIndexException if a column is not an int column of the items
+     * @throws RemoteException       if one of TM and RMs fails or exceptions occurs in RMI
+     */
+    List<ResourceItem<K>> queryRangeSnapshot(long xid, Range... ranges) throws RemoteException;
+
     /**
      * Update the <code>ResourceItem</code> with the given key value related to the transaction of the given xid
      * with the given new value
@@ -76,6 +125,20 @@ public interface ResourceManager<K> extends Remote {
     boolean insert(long xid, ResourceItem<K> newItem) throws DeadlockException, RemoteException;
 
 
+    /**
+     * Decrease the number available of the <code>Reservable</code> item with the given key
+     * related to the transaction of the given xid by escrow, which is applied to the item on commit
+     *
+     * @param xid    transaction id
+     * @param key    key of the ResourceItem to decrease
+     * @param amount amount to decrease
+     * @return true if decrease successfully, or false if the amount is not positive, the item is absent,
+     * not <code>Reservable</code>, or its number available does not cover the amount
+     * @throws DeadlockException if a deadlock is detected
+     * @throws RemoteException   if one of TM and RMs fails or exceptions occurs in RMI
+     */
+    boolean decreaseAvail(long xid, K key, int amount) throws DeadlockException, RemoteException;
+
     /**
      * Delete the <code>ResourceItem</code>s related to the transaction with the given xid
      * with the given key value
@@ -4,6 +4,7 @@ import transaction.exception.InvalidTransactionException;
 import transaction.exception.TransactionAbortedException;
 
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * Interface for the Workflow Controller of the Distributed Travel
@@ -217,6 +218,21 @@ public interface WorkflowController extends Remote {
      */
     int queryCarsPrice(long xid, String location) throws RemoteException;
 
+    /**
+     * Return the flight numbers of the flights priced in [minPrice, maxPrice] with at least minAvail empty seats.
+     */
+    List<String> queryFlightsInRange(long xid, int minPrice, int maxPrice, int minAvail) throws RemoteException;
+
+    /**
+     * Return the locations of the hotels priced in [minPrice, maxPrice] with at least minAvail rooms available.
+     */
+    List<String> queryRoomsInRange(long xid, int minPrice, int maxPrice, int minAvail) throws RemoteException;
+
+    /**
+     * Return the locations of the rental cars priced in [minPrice, maxPrice] with at least minAvail cars available.
+     */
+    List<String> queryCarsInRange(long xid, int minPrice, int maxPrice, int minAvail) throws RemoteException;
+
 
     /* Return the total price of all reservations held for a customer. Return -1 if custName==null or doesn't exist.*/
     int queryCustomerBill(long xid, String custName) throws RemoteException;
@@ -0,0 +1,81 @@
+package transaction.host.rm;
+
+import transaction.bean.Reservation;
+import transaction.bean.ReservationKey;
+import transaction.bean.ReservationType;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Hit ratio and lookup time of the buffer pool of a lazy reservation table against its capacity, with 80% of
+ * the lookups on 20% of the customers, written to the directory <code>BenchmarkBufferPool</code>, which is overwritten.
+ */
+public class BenchmarkBufferPool {
+    private static final int CUSTOMERS = 20000;
+    private static final int RESERVATIONS_PER_CUSTOMER = 5;
+    private static final int PARTITIONS = 16384;
+    private static final int LOOKUPS = 200000;
+    private static final double[] CAPACITIES = {1.0, 0.5, 0.2, 0.05};
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(BenchmarkBufferPool.class.getSimpleName());
+        prepare(dir);
+        int rows = CUSTOMERS * RESERVATIONS_PER_CUSTOMER;
+        System.out.printf("%10s %10s %10s %10s %12s%n", "capacity", "hit ratio", "evictions", "resident", "lookup");
+        for (double capacity : CAPACITIES) {
+            BufferPool pool = new BufferPool(capacity >= 1 ? 0 : (int) (rows * capacity));
+            long time = run(dir, pool);
+            System.out.printf("%9.0f%% %9.1f%% %10d %10d %10.2fus%n", capacity * 100,
+                    100.0 * pool.hits() / (pool.hits() + pool.misses()), pool.evictions(), pool.resident(),
+                    time / 1e3 / LOOKUPS);
+        }
+    }
+
+    private static void prepare(File dir) throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        PartitionedStore<ReservationKey> store =
+                new PartitionedStore<ReservationKey>(dir, "Reservations", PARTITIONS, new BufferPool(0));
+        RMTable<ReservationKey> table = new RMTable<ReservationKey>("Reservations", null, -1, null, 0);
+        table.trackDirtyKeys();
+        store.recover(table);
+        for (int customer = 0; customer < CUSTOMERS; customer++) {
+            for (int i = 0; i < RESERVATIONS_PER_CUSTOMER; i++) {
+                table.commit(new Reservation("C" + customer, ReservationType.FLIGHT, "F" + i), 0, false);
+            }
+        }
+        if (!store.checkpoint(table.table(), table.dirtyKeys())) {
+            throw new IllegalStateException("can't write the store");
+        }
+        store.close();
+    }
+
+    /**
+     * @return the time of the lookups
+     */
+    private static long run(File dir, BufferPool pool) throws Exception {
+        PartitionedStore<ReservationKey> store = new PartitionedStore<ReservationKey>(dir, "Reservations", PARTITIONS, pool);
+        RMTable<ReservationKey> table = new RMTable<ReservationKey>("Reservations", null, -1, null, 0);
+        table.trackDirtyKeys();
+        store.recover(table);
+        Random random = new Random(1);
+        long begin = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int customer = random.nextInt(5) < 4 ? random.nextInt(CUSTOMERS / 5) : random.nextInt(CUSTOMERS);
+            RMTable<ReservationKey> workspace = new RMTable<ReservationKey>("Reservations", table, i + 1, null, 0);
+            if (workspace.lookup("custName", "C" + customer).size() != RESERVATIONS_PER_CUSTOMER) {
+                throw new AssertionError("lost reservations of C" + customer);
+            }
+            workspace.unpinAll();
+        }
+        long time = System.nanoTime() - begin;
+        store.close();
+        return time;
+    }
+}
@@ -0,0 +1,103 @@
+package transaction.host.rm;
+
+import transaction.bean.Flight;
+import transaction.core.Host;
+import util.GroupCommitLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Recovery time of RMFlights against the number of rows and of prepared transactions, until bound and until relocked,
+ * run in a directory holding <code>conf/ddb.conf</code>, where the directory <code>RMFlights</code> is overwritten.
+ */
+public class BenchmarkRecovery {
+    private static final int[] ROWS = {10000, 100000};
+    private static final int[] IN_FLIGHT = {0, 100, 1000};
+    private static final int ROWS_PER_XID = 10;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%8s %10s %12s %12s%n", "rows", "in flight", "serving", "restored");
+        for (int rows : ROWS) {
+            for (int inFlight : IN_FLIGHT) {
+                prepare(rows, inFlight);
+                // recover twice and report the second, once the classes are loaded and compiled
+                recover();
+                prepare(rows, inFlight);
+                long[] result = recover();
+                System.out.printf("%8d %10d %10.1fms %10.1fms%n", rows, inFlight, result[0] / 1e6, result[1] / 1e6);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void prepare(int rows, int inFlight) throws Exception {
+        File dir = new File(Host.HostName.RMFlights.name());
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+
+        List<RedoLog.Record<String>> records = new ArrayList<RedoLog.Record<String>>();
+        for (int i = 0; i < rows; i++) {
+            records.add(RedoLog.Record.put(1, dir.getName(), new Flight("F" + i, 100, 100, 100)));
+        }
+        records.add(RedoLog.Record.<String>end(RedoLog.Type.COMMIT, 1));
+        append(dir, records);
+        // replay the rows and checkpoint them
+        ResourceManagerImpl<String> rm = new RMManagerFlights();
+        rm.recover();
+        close(rm);
+
+        records.clear();
+        GroupCommitLog xidLog = new GroupCommitLog(new File(dir, ResourceManagerImpl.TRANSACTION_LOG_FILENAME), 1024, 0);
+        xidLog.open();
+        for (int xid = 2; xid < inFlight + 2; xid++) {
+            xidLog.append(Collections.singletonList(ResourceManagerImpl.transactionLogRecord(true, xid)));
+            for (int i = 0; i < ROWS_PER_XID; i++) {
+                String key = "F" + ((xid - 2) * ROWS_PER_XID + i) % rows;
+                records.add(RedoLog.Record.put(xid, dir.getName(), new Flight(key, 100, 100, 99)));
+            }
+            records.add(RedoLog.Record.<String>end(RedoLog.Type.PREPARE, xid));
+        }
+        xidLog.close();
+        append(dir, records);
+    }
+
+    private static void append(File dir, List<RedoLog.Record<String>> records) throws Exception {
+        RedoLog<String> redoLog = new RedoLog<String>(new GroupCommitLog(new File(dir, RedoLog.FILE_NAME), 1024, 0));
+        redoLog.open(ForkJoinPool.commonPool());
+        if (!records.isEmpty() && !redoLog.append(records)) {
+            throw new IllegalStateException("can't append to the redo log");
+        }
+        redoLog.close();
+    }
+
+    /**
+     * @return the time until serving and until restored
+     */
+    private static long[] recover() throws Exception {
+        ResourceManagerImpl<String> rm = new RMManagerFlights();
+        long begin = System.nanoTime();
+        rm.recover();
+        long serving = System.nanoTime() - begin;
+        rm.awaitRestored();
+        long restored = System.nanoTime() - begin;
+        close(rm);
+        return new long[]{serving, restored};
+    }
+
+    private static void close(ResourceManagerImpl<String> rm) {
+        try {
+            rm.dieNow();
+        } catch (Exception ignored) {
+            // dieNow always throws after closing the logs
+        }
+    }
+}
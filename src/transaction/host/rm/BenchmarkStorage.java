@@ -0,0 +1,134 @@
+package transaction.host.rm;
+
+import transaction.bean.Flight;
+import transaction.bean.ResourceItem;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The storage engines compared on checkpoints, recovery, lookups and a scan of a Flight table,
+ * written to the directory <code>BenchmarkStorage</code>, which is overwritten.
+ */
+public class BenchmarkStorage {
+    private static final int ROWS = 100000;
+    private static final int UPDATES = ROWS / 100;
+    private static final int LOOKUPS = 1000;
+
+    private interface Factory {
+        StorageEngine<String> create(File dir);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final File dir = new File(BenchmarkStorage.class.getSimpleName());
+        Map<String, Factory> factories = new LinkedHashMap<String, Factory>();
+        factories.put("serialized", new Factory() {
+            @Override
+            public StorageEngine<String> create(File dir) {
+                return new SerializedStore<String>(dir, "Flights");
+            }
+        });
+        factories.put("mapped", new Factory() {
+            @Override
+            public StorageEngine<String> create(File dir) {
+                return new MappedStore<String>(dir, "Flights", Flight.class, ForkJoinPool.commonPool(), 64,
+                        new BufferPool(0));
+            }
+        });
+        factories.put("lazy", new Factory() {
+            @Override
+            public StorageEngine<String> create(File dir) {
+                return new PartitionedStore<String>(dir, "Flights", 64, new BufferPool(0));
+            }
+        });
+        // run twice and report the second, once the classes are loaded and compiled
+        for (int round = 0; round < 2; round++) {
+            if (round == 1) {
+                System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n",
+                        "engine", "bytes", "checkpoint", "update", "recover", "lookup", "scan");
+            }
+            for (Map.Entry<String, Factory> factory : factories.entrySet()) {
+                long[] result = run(dir, factory.getValue());
+                if (round == 1) {
+                    System.out.printf("%-10s %10d %8.1fms %8.1fms %8.1fms %8.1fms %8.1fms%n", factory.getKey(), result[0],
+                            result[1] / 1e6, result[2] / 1e6, result[3] / 1e6, result[4] / 1e6, result[5] / 1e6);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return the bytes on disk, and the time of the first checkpoint, the update, the recovery, the lookups and the scan
+     */
+    private static long[] run(File dir, Factory factory) throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.mkdirs();
+        long[] result = new long[6];
+
+        StorageEngine<String> engine = factory.create(dir);
+        RMTable<String> table = newTable();
+        engine.recover(table);
+        for (int i = 0; i < ROWS; i++) {
+            table.commit(new Flight("F" + i, 100, 100, 100), 0, false);
+        }
+        long begin = System.nanoTime();
+        checkpoint(engine, table);
+        result[1] = System.nanoTime() - begin;
+        Random random = new Random(1);
+        for (int i = 0; i < UPDATES; i++) {
+            table.commit(new Flight("F" + random.nextInt(ROWS), 100, 100, 99), 0, false);
+        }
+        begin = System.nanoTime();
+        checkpoint(engine, table);
+        result[2] = System.nanoTime() - begin;
+        engine.close();
+        for (File file : dir.listFiles()) {
+            result[0] += file.length();
+        }
+
+        begin = System.nanoTime();
+        engine = factory.create(dir);
+        table = newTable();
+        engine.recover(table);
+        result[3] = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (table.get("F" + random.nextInt(ROWS)) == null) {
+                throw new AssertionError("lost a row");
+            }
+        }
+        result[4] = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        int count = 0;
+        for (ResourceItem<String> ignored : table) {
+            count++;
+        }
+        result[5] = System.nanoTime() - begin;
+        if (count != ROWS) {
+            throw new AssertionError("scanned " + count + " of " + ROWS);
+        }
+        engine.close();
+        return result;
+    }
+
+    private static RMTable<String> newTable() {
+        RMTable<String> table = new RMTable<String>("Flights", null, -1, null, 0);
+        table.trackDirtyKeys();
+        return table;
+    }
+
+    private static void checkpoint(StorageEngine<String> engine, RMTable<String> table) {
+        Set<String> keys = table.dirtyKeys();
+        if (!engine.checkpoint(table.table(), keys)) {
+            throw new IllegalStateException("can't checkpoint");
+        }
+        table.clean(keys);
+    }
+}
@@ -0,0 +1,152 @@
+package transaction.host.rm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer pool of the partitions loaded on demand, which evicts those not referenced recently by a clock.
+ */
+public class BufferPool {
+    private final int capacity;
+    private final List<Pages> owners;
+    private final List<Frame> clock;
+    private int hand;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * @param capacity the number of items resident, or 0 for no eviction
+     */
+    public BufferPool(int capacity) {
+        this.capacity = capacity;
+        this.owners = new ArrayList<Pages>();
+        this.clock = new ArrayList<Frame>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * the partitions of a table, evicted by the pool
+     */
+    interface Pages {
+        /**
+         * @return the number of items resident
+         */
+        int resident();
+
+        /**
+         * @return if the partition is referenced since the last invocation, which clears the reference
+         */
+        boolean referenced(int page);
+
+        /**
+         * drop the items of the partition unless it is pinned or dirty
+         *
+         * @return if evicted
+         */
+        boolean evict(int page);
+    }
+
+    synchronized void register(Pages owner) {
+        owners.add(owner);
+    }
+
+    /**
+     * drop all the tables registered, e.g. when the RM dies
+     */
+    public synchronized void clear() {
+        owners.clear();
+        clock.clear();
+        hand = 0;
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * add a partition just loaded to the clock, and then evict the others until the items resident fit the capacity
+     */
+    synchronized void admit(Pages owner, int page) {
+        misses.incrementAndGet();
+        // behind the hand, so that it is the last one swept
+        clock.add(hand, new Frame(owner, page));
+        hand++;
+        evict(owner, page);
+    }
+
+    /**
+     * evict the partitions until the items resident fit the capacity, e.g. once a checkpoint has cleaned them
+     */
+    public synchronized void shrink() {
+        evict(null, -1);
+    }
+
+    /**
+     * sweep the clock until the items resident fit the capacity, or none is evictable in two sweeps,
+     * the first of which may only clear the references
+     *
+     * @param page which is kept, loaded by the owner just now
+     */
+    private void evict(Pages owner, int page) {
+        if (capacity <= 0) {
+            return;
+        }
+        int resident = resident();
+        for (int swept = 0, limit = 2 * clock.size(); resident > capacity && swept < limit; swept++) {
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+            Frame frame = clock.get(hand);
+            if (frame.owner == owner && frame.page == page || frame.owner.referenced(frame.page) ||
+                    !frame.owner.evict(frame.page)) {
+                hand++;
+                continue;
+            }
+            clock.remove(hand);
+            evictions.incrementAndGet();
+            resident = resident();
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public synchronized int resident() {
+        int resident = 0;
+        for (Pages owner : owners) {
+            resident += owner.resident();
+        }
+        return resident;
+    }
+
+    @Override
+    public String toString() {
+        long hits = hits(), misses = misses();
+        return String.format("BufferPool{hits=%d, misses=%d, hitRatio=%.1f%%, evictions=%d, resident=%d, capacity=%d}",
+                hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses), evictions(), resident(),
+                capacity);
+    }
+
+    private static class Frame {
+        private final Pages owner;
+        private final int page;
+
+        Frame(Pages owner, int page) {
+            this.owner = owner;
+            this.page = page;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package transaction.host.rm;
+
+import transaction.bean.Codecs;
+import transaction.bean.IndexedKey;
+import transaction.bean.ResourceItem;
+import util.IOUtil;
+import util.Log;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-width record store of a main table of <code>Flight</code>, <code>Car</code> or <code>Hotel</code>
+ * in a memory-mapped file, whose slots are written in place through a journal on checkpoint,
+ * and decoded on demand by <code>RMTable</code> from the mapping through the index of the slots by key.
+ */
+public class MappedStore<K> implements PartitionedEngine<K> {
+    public static final String SUFFIX = ".dat";
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final String OVERFLOW_SUFFIX = ".overflow";
+    private static final int MAGIC = 0x4D535431;
+    private static final int HEADER_SIZE = 16;
+    private static final int KEY_SIZE = 64;
+    private static final int RECORD_SIZE = 1 + 2 + KEY_SIZE + 3 * 4;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int LOAD_THRESHOLD = 4096;
+
+    private final File file;
+    private final File journal;
+    private final File overflow;
+    private final Constructor<? extends ResourceItem<K>> constructor;
+    private final ForkJoinPool pool;
+    private final BufferPool bufferPool;
+    private final int partitions;
+    private final List<Map<K, Integer>> slots;
+    private final TreeSet<Integer> freeSlots;
+    private final Map<K, ResourceItem<K>> overflowItems;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int capacity;
+
+    /**
+     * @param pool       on which the keys of the slots are decoded in parallel on recovery
+     * @param partitions the number of partitions by the hash of the key, which are loaded on demand
+     * @param bufferPool which evicts the partitions loaded
+     */
+    public MappedStore(File dir, String tableName, Class<? extends ResourceItem<K>> itemClass, ForkJoinPool pool,
+                       int partitions, BufferPool bufferPool) {
+        this.file = new File(dir, tableName + SUFFIX);
+        this.pool = pool;
+        this.partitions = partitions;
+        this.bufferPool = bufferPool;
+        this.journal = new File(file.getPath() + JOURNAL_SUFFIX);
+        this.overflow = new File(file.getPath() + OVERFLOW_SUFFIX);
+        try {
+            this.constructor = itemClass.getConstructor(String.class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(itemClass + " is not of a String key and three ints", e);
+        }
+        this.slots = new ArrayList<Map<K, Integer>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            slots.add(new HashMap<K, Integer>());
+        }
+        this.freeSlots = new TreeSet<Integer>();
+        this.overflowItems = new HashMap<K, ResourceItem<K>>();
+    }
+
+    /**
+     * map the file, redoing the journal of an interrupted checkpoint first, index the slots by the keys,
+     * which are decoded in parallel, and then set the store as the source of the table,
+     * while the overflow file is read into the store
+     */
+    @Override
+    public boolean recover(RMTable<K> table) throws IOException {
+        boolean exists = file.exists();
+        if (exists) {
+            open();
+            redoJournal();
+            index();
+            byte[] data = IOUtil.readBytes(overflow.getPath());
+            if (data != null) {
+                List<ResourceItem<K>> items = Codecs.listFromBytes(data);
+                if (items == null) {
+                    throw new IOException(overflow + " is not a list of items");
+                }
+                for (ResourceItem<K> item : items) {
+                    overflowItems.put(item.getKey(), item);
+                }
+            }
+        }
+        table.setSource(this, bufferPool);
+        return exists;
+    }
+
+    private synchronized void index() {
+        for (Map<K, Integer> partitionSlots : slots) {
+            partitionSlots.clear();
+        }
+        freeSlots.clear();
+        overflowItems.clear();
+        AtomicReferenceArray<K> keys = new AtomicReferenceArray<K>(capacity);
+        pool.invoke(new IndexTask(keys, 0, capacity));
+        for (int slot = 0; slot < capacity; slot++) {
+            K key = keys.get(slot);
+            if (key == null) {
+                freeSlots.add(slot);
+            } else {
+                slots.get(partition(key)).put(key, slot);
+            }
+        }
+    }
+
+    @Override
+    public int partitions() {
+        return partitions;
+    }
+
+    /**
+     * @param key the key of an item, or an index value
+     */
+    @Override
+    public int partition(Object key) {
+        Object indexValue = key instanceof IndexedKey ? ((IndexedKey) key).indexValue() : key;
+        return (indexValue.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * @return the items of the partition decoded from their slots, and those of the overflow file
+     */
+    @Override
+    public synchronized List<ResourceItem<K>> scan(int partition) throws IOException {
+        List<ResourceItem<K>> items = new ArrayList<ResourceItem<K>>();
+        if (buffer != null) {
+            for (Integer slot : slots.get(partition).values()) {
+                items.add(read(slot));
+            }
+        }
+        for (ResourceItem<K> item : overflowItems.values()) {
+            if (partition(item.getKey()) == partition) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * write the given keys of the table in place, where a key absent from the table frees its slot,
+     * and all of which are loaded as they are dirty
+     *
+     * @return true if written and synced successfully
+     */
+    @Override
+    public synchronized boolean checkpoint(Map<K, ResourceItem<K>> table, Collection<K> keys) {
+        try {
+            if (raf == null) {
+                open();
+            }
+            Map<Integer, ResourceItem<K>> changes = new TreeMap<Integer, ResourceItem<K>>();
+            boolean overflowChanged = false;
+            for (K key : keys) {
+                ResourceItem<K> item = table.get(key);
+                if (isOverflow(key)) {
+                    overflowChanged = true;
+                    if (item == null) {
+                        overflowItems.remove(key);
+                    } else {
+                        overflowItems.put(key, item);
+                    }
+                    continue;
+                }
+                Map<K, Integer> partitionSlots = slots.get(partition(key));
+                Integer slot = partitionSlots.get(key);
+                if (item == null) {
+                    if (slot != null) {
+                        partitionSlots.remove(key);
+                        freeSlots.add(slot);
+                        changes.put(slot, null);
+                    }
+                } else {
+                    if (slot == null) {
+                        slot = allocate(key);
+                    }
+                    changes.put(slot, item);
+                }
+            }
+            byte[] overflowData = null;
+            if (overflowChanged) {
+                overflowData = Codecs.listToBytes(new ArrayList<ResourceItem<K>>(overflowItems.values()));
+            }
+            if (changes.isEmpty() && overflowData == null) {
+                return true;
+            }
+            writeJournal(changes, overflowData);
+            for (Map.Entry<Integer, ResourceItem<K>> change : changes.entrySet()) {
+                write(change.getKey(), change.getValue());
+            }
+            buffer.force();
+            if (overflowData != null) {
+                writeOverflow(overflowData);
+            }
+            return journal.delete();
+        } catch (IOException e) {
+            Log.e("%s: checkpoint error %s", file, e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        IOUtil.close(raf);
+        raf = null;
+        buffer = null;
+    }
+
+    /**
+     * @return if the key is too long for a slot, and then kept in the overflow file
+     */
+    private static boolean isOverflow(Object key) {
+        return String.valueOf(key).getBytes(StandardCharsets.UTF_8).length > KEY_SIZE;
+    }
+
+    private void writeOverflow(byte[] data) throws IOException {
+        if (!IOUtil.writeBytes(overflow.getPath(), data)) {
+            throw new IOException("can't write " + overflow);
+        }
+    }
+
+    private void open() throws IOException {
+        boolean created = !file.exists();
+        raf = new RandomAccessFile(file, "rw");
+        if (created) {
+            raf.setLength(HEADER_SIZE + (long) INITIAL_SLOTS * RECORD_SIZE);
+        }
+        map();
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, RECORD_SIZE);
+            buffer.force();
+            for (int slot = 0; slot < capacity; slot++) {
+                freeSlots.add(slot);
+            }
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != RECORD_SIZE) {
+            throw new IOException(file + " is not a record store of " + RECORD_SIZE + " bytes per record");
+        }
+    }
+
+    private void map() throws IOException {
+        long length = raf.length();
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        capacity = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    /**
+     * take the lowest free slot, doubling the file if there is none
+     */
+    private int allocate(K key) throws IOException {
+        if (freeSlots.isEmpty()) {
+            grow(capacity * 2);
+        }
+        int slot = freeSlots.pollFirst();
+        slots.get(partition(key)).put(key, slot);
+        return slot;
+    }
+
+    private void grow(int newCapacity) throws IOException {
+        int oldCapacity = capacity;
+        raf.setLength(HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+        map();
+        for (int slot = oldCapacity; slot < capacity; slot++) {
+            freeSlots.add(slot);
+        }
+    }
+
+    /**
+     * decode the keys of the slots in a range, splitting it in halves down to <code>LOAD_THRESHOLD</code> slots
+     */
+    private class IndexTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final AtomicReferenceArray<K> keys;
+        private final int from, to;
+
+        IndexTask(AtomicReferenceArray<K> keys, int from, int to) {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LOAD_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new IndexTask(keys, from, middle), new IndexTask(keys, middle, to));
+                return;
+            }
+            for (int slot = from; slot < to; slot++) {
+                keys.set(slot, readKey(slot));
+            }
+        }
+    }
+
+    /**
+     * @return the key of the slot, or null if the slot is free
+     */
+    @SuppressWarnings("unchecked")
+    private K readKey(int slot) {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        if (buffer.get(offset) == 0) {
+            return null;
+        }
+        byte[] key = new byte[buffer.getShort(offset + 1)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 3);
+        record.get(key);
+        // the items of a mapped store are keyed by a string
+        return (K) new String(key, StandardCharsets.UTF_8);
+    }
+
+    private ResourceItem<K> read(int slot) throws IOException {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        if (buffer.get(offset) == 0) {
+            return null;
+        }
+        byte[] key = new byte[buffer.getShort(offset + 1)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 3);
+        record.get(key);
+        record.position(offset + 3 + KEY_SIZE);
+        try {
+            return constructor.newInstance(new String(key, StandardCharsets.UTF_8),
+                    record.getInt(), record.getInt(), record.getInt());
+        } catch (Exception e) {
+            throw new IOException("can't construct the item of slot " + slot, e);
+        }
+    }
+
+    /**
+     * write the item to its slot, or free the slot if the item is null
+     */
+    private void write(int slot, ResourceItem<K> item) {
+        write(slot, encode(item));
+    }
+
+    private void write(int slot, byte[] record) {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        ByteBuffer target = buffer.duplicate();
+        if (record[0] != 0 && buffer.get(offset) != 0 && sameKey(offset, record)) {
+            // the slot holds the key already, then only the ints change
+            target.position(offset + 3 + KEY_SIZE);
+            target.put(record, 3 + KEY_SIZE, 3 * 4);
+        } else {
+            target.position(offset);
+            target.put(record);
+        }
+    }
+
+    private boolean sameKey(int offset, byte[] record) {
+        for (int i = 1; i < 3 + KEY_SIZE; i++) {
+            if (buffer.get(offset + i) != record[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] encode(ResourceItem<K> item) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        if (item == null) {
+            return record.array();
+        }
+        String[] values = item.getColumnValues();
+        byte[] key = values[0].getBytes(StandardCharsets.UTF_8);
+        record.put((byte) 1).putShort((short) key.length).put(key);
+        record.position(3 + KEY_SIZE);
+        record.putInt(Integer.parseInt(values[1]))
+                .putInt(Integer.parseInt(values[2]))
+                .putInt(Integer.parseInt(values[3]));
+        return record.array();
+    }
+
+    /**
+     * the journal is <code>[MAGIC][count]([slot][record])*([length][overflow])?[MAGIC]</code>,
+     * which is complete only with the trailer
+     */
+    private void writeJournal(Map<Integer, ResourceItem<K>> changes, byte[] overflowData) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(journal);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(changes.size());
+            for (Map.Entry<Integer, ResourceItem<K>> change : changes.entrySet()) {
+                out.writeInt(change.getKey());
+                out.write(encode(change.getValue()));
+            }
+            if (overflowData != null) {
+                out.writeInt(overflowData.length);
+                out.write(overflowData);
+            }
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    /**
+     * redo a complete journal, while an incomplete one is dropped as the file is not written in place yet
+     */
+    private void redoJournal() throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+        try {
+            if (in.readInt() == MAGIC) {
+                int count = in.readInt();
+                int[] journalSlots = new int[count];
+                byte[][] records = new byte[count][RECORD_SIZE];
+                for (int i = 0; i < count; i++) {
+                    journalSlots[i] = in.readInt();
+                    in.readFully(records[i]);
+                }
+                byte[] overflowData = null;
+                int trailer = in.readInt();
+                if (trailer != MAGIC) {
+                    overflowData = new byte[trailer];
+                    in.readFully(overflowData);
+                    trailer = in.readInt();
+                }
+                if (trailer == MAGIC) {
+                    Log.i("%s: redo the journal of %d records", file, count);
+                    for (int i = 0; i < count; i++) {
+                        if (journalSlots[i] >= capacity) {
+                            grow(Math.max(journalSlots[i] + 1, capacity * 2));
+                        }
+                        write(journalSlots[i], records[i]);
+                    }
+                    buffer.force();
+                    if (overflowData != null) {
+                        writeOverflow(overflowData);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            Log.e("%s: drop the incomplete journal", file);
+        } finally {
+            IOUtil.close(in);
+        }
+        if (!journal.delete()) {
+            throw new IOException("can't delete " + journal);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package transaction.host.rm;
+
+import transaction.bean.ResourceItem;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage engine splitting a main table into partitions, which the table scans on demand once set as its source.
+ */
+public interface PartitionedEngine<K> extends StorageEngine<K> {
+    int partitions();
+
+    /**
+     * @param key the key of an item, or an index value
+     * @return the partition holding it
+     */
+    int partition(Object key);
+
+    /**
+     * @return the items of the partition
+     */
+    List<ResourceItem<K>> scan(int partition) throws IOException;
+}
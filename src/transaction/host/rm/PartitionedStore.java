@@ -0,0 +1,235 @@
+package transaction.host.rm;
+
+import transaction.bean.Codecs;
+import transaction.bean.IndexedKey;
+import transaction.bean.ResourceItem;
+import util.IOUtil;
+import util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Store of a main table split into hash partitions of the index value, which are loaded on demand by
+ * <code>RMTable</code> from an append-only data file located by <code>[table].index</code>.
+ */
+public class PartitionedStore<K> implements PartitionedEngine<K> {
+    public static final String INDEX_SUFFIX = ".index";
+    public static final String DATA_SUFFIX = ".parts";
+    private static final int MAGIC = 0x50535431;
+    private static final long MIN_COMPACT_SIZE = 1 << 20;
+
+    private final File dir;
+    private final String tableName;
+    private final BufferPool pool;
+    private int partitions;
+    private long generation;
+    private long[] offsets;
+    private int[] lengths;
+    private RandomAccessFile data;
+
+    /**
+     * @param partitions the number of partitions of a new store, while an existing one keeps its own
+     * @param pool       which evicts the partitions loaded
+     */
+    public PartitionedStore(File dir, String tableName, int partitions, BufferPool pool) {
+        this.dir = dir;
+        this.tableName = tableName;
+        this.partitions = partitions;
+        this.pool = pool;
+    }
+
+    /**
+     * @return if the file belongs to a store, but is not its index
+     */
+    public static boolean isDataFile(String fileName) {
+        return fileName.contains(DATA_SUFFIX);
+    }
+
+    /**
+     * read the index, delete the data files of the other generations left by an interrupted checkpoint,
+     * and then set the store as the source of the table
+     */
+    @Override
+    public boolean recover(RMTable<K> table) throws IOException {
+        boolean exists = open();
+        table.setSource(this, pool);
+        return exists;
+    }
+
+    private synchronized boolean open() throws IOException {
+        boolean exists = indexFile().exists();
+        if (exists) {
+            byte[] index = IOUtil.readBytes(indexFile().getPath());
+            ByteBuffer in = ByteBuffer.wrap(index == null ? new byte[0] : index);
+            if (in.remaining() < 16 || in.getInt() != MAGIC) {
+                throw new IOException(indexFile() + " is not an index of partitions");
+            }
+            partitions = in.getInt();
+            generation = in.getLong();
+            offsets = new long[partitions];
+            lengths = new int[partitions];
+            for (int i = 0; i < partitions; i++) {
+                offsets[i] = in.getLong();
+                lengths[i] = in.getInt();
+            }
+        } else {
+            generation = 0;
+            offsets = new long[partitions];
+            lengths = new int[partitions];
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(tableName + DATA_SUFFIX) && !file.equals(dataFile(generation))) {
+                    file.delete();
+                }
+            }
+        }
+        data = new RandomAccessFile(dataFile(generation), "rw");
+        return exists;
+    }
+
+    @Override
+    public int partitions() {
+        return partitions;
+    }
+
+    /**
+     * @param key the key of an item, or an index value
+     */
+    @Override
+    public int partition(Object key) {
+        Object indexValue = key instanceof IndexedKey ? ((IndexedKey) key).indexValue() : key;
+        return (indexValue.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    @Override
+    public synchronized List<ResourceItem<K>> scan(int partition) throws IOException {
+        if (lengths[partition] == 0) {
+            return Collections.emptyList();
+        }
+        byte[] segment = new byte[lengths[partition]];
+        data.seek(offsets[partition]);
+        data.readFully(segment);
+        List<ResourceItem<K>> items = Codecs.listFromBytes(segment);
+        if (items == null) {
+            throw new IOException(dataFile(generation) + " has a broken partition " + partition);
+        }
+        return items;
+    }
+
+    /**
+     * write the partitions of the given keys, whose items are all in the table
+     *
+     * @return true if the partitions and the index are written and synced successfully
+     */
+    @Override
+    public synchronized boolean checkpoint(Map<K, ResourceItem<K>> table, Collection<K> keys) {
+        Set<Integer> dirty = new HashSet<Integer>();
+        for (K key : keys) {
+            dirty.add(partition(key));
+        }
+        if (dirty.isEmpty()) {
+            return true;
+        }
+        Map<Integer, List<ResourceItem<K>>> items = new HashMap<Integer, List<ResourceItem<K>>>();
+        for (Integer partition : dirty) {
+            items.put(partition, new ArrayList<ResourceItem<K>>());
+        }
+        for (ResourceItem<K> item : table.values()) {
+            List<ResourceItem<K>> partitionItems = items.get(partition(item.getKey()));
+            if (partitionItems != null) {
+                partitionItems.add(item);
+            }
+        }
+        Map<Integer, byte[]> segments = new HashMap<Integer, byte[]>();
+        long live = 0;
+        for (int i = 0; i < partitions; i++) {
+            if (dirty.contains(i)) {
+                List<ResourceItem<K>> partitionItems = items.get(i);
+                segments.put(i, partitionItems.isEmpty() ? new byte[0] : Codecs.listToBytes(partitionItems));
+                live += segments.get(i).length;
+            } else {
+                live += lengths[i];
+            }
+        }
+
+        try {
+            long[] newOffsets = offsets.clone();
+            int[] newLengths = lengths.clone();
+            long newGeneration = generation;
+            RandomAccessFile target = data;
+            long position = data.length();
+            if (position > MIN_COMPACT_SIZE && position - live > live) {
+                // copy the live segments to the next generation
+                newGeneration = generation + 1;
+                target = new RandomAccessFile(dataFile(newGeneration), "rw");
+                target.setLength(0);
+                position = 0;
+                for (int i = 0; i < partitions; i++) {
+                    if (!segments.containsKey(i) && lengths[i] > 0) {
+                        byte[] segment = new byte[lengths[i]];
+                        data.seek(offsets[i]);
+                        data.readFully(segment);
+                        segments.put(i, segment);
+                    }
+                }
+            }
+            target.seek(position);
+            for (Map.Entry<Integer, byte[]> segment : segments.entrySet()) {
+                newOffsets[segment.getKey()] = position;
+                newLengths[segment.getKey()] = segment.getValue().length;
+                target.write(segment.getValue());
+                position += segment.getValue().length;
+            }
+            target.getFD().sync();
+            if (!IOUtil.writeBytes(dir.getPath(), indexFile().getName(), encodeIndex(newGeneration, newOffsets, newLengths))) {
+                if (target != data) {
+                    IOUtil.close(target);
+                    dataFile(newGeneration).delete();
+                }
+                return false;
+            }
+            offsets = newOffsets;
+            lengths = newLengths;
+            if (target != data) {
+                IOUtil.close(data);
+                dataFile(generation).delete();
+                data = target;
+                generation = newGeneration;
+                Log.i("%s: compacted to %d bytes", tableName, position);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e("%s: checkpoint error %s", tableName, e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        IOUtil.close(data);
+        data = null;
+    }
+
+    private byte[] encodeIndex(long generation, long[] offsets, int[] lengths) {
+        ByteBuffer out = ByteBuffer.allocate(16 + partitions * 12);
+        out.putInt(MAGIC).putInt(partitions).putLong(generation);
+        for (int i = 0; i < partitions; i++) {
+            out.putLong(offsets[i]).putInt(lengths[i]);
+        }
+        return out.array();
+    }
+
+    private File indexFile() {
+        return new File(dir, tableName + INDEX_SUFFIX);
+    }
+
+    private File dataFile(long generation) {
+        return new File(dir, tableName + DATA_SUFFIX + "." + generation);
+    }
+}
@@ -6,6 +6,7 @@
  */
 package transaction.host.rm;
 
+import transaction.bean.Car;
 import transaction.core.Host;
 
 import java.rmi.RemoteException;
@@ -17,7 +18,7 @@ import java.rmi.RemoteException;
  */
 public class RMManagerCars extends ResourceManagerImpl<String> {
     public RMManagerCars() throws RemoteException {
-        super(Host.HostName.RMCars);
+        super(Host.HostName.RMCars, Car.class);
     }
 
     public static void main(String[] args) {
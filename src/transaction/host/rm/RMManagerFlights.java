@@ -6,6 +6,7 @@
  */
 package transaction.host.rm;
 
+import transaction.bean.Flight;
 import transaction.core.Host;
 
 import java.rmi.RemoteException;
@@ -17,7 +18,7 @@ import java.rmi.RemoteException;
  */
 public class RMManagerFlights extends ResourceManagerImpl<String> {
     public RMManagerFlights() throws RemoteException {
-        super(Host.HostName.RMFlights);
+        super(Host.HostName.RMFlights, Flight.class);
     }
 
     public static void main(String[] args) {
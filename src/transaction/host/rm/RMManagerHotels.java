@@ -6,6 +6,7 @@
  */
 package transaction.host.rm;
 
+import transaction.bean.Hotel;
 import transaction.core.Host;
 
 import java.rmi.RemoteException;
@@ -17,7 +18,7 @@ import java.rmi.RemoteException;
  */
 public class RMManagerHotels extends ResourceManagerImpl<String> {
     public RMManagerHotels() throws RemoteException {
-        super(Host.HostName.RMRooms);
+        super(Host.HostName.RMRooms, Hotel.class);
     }
 
     public static void main(String[] args) {
@@ -9,35 +9,83 @@ package transaction.host.rm;
 import lockmgr.DeadlockException;
 import lockmgr.LockManager;
 import lockmgr.LockType;
+import transaction.bean.Range;
+import transaction.bean.Ranged;
+import transaction.bean.Reservable;
 import transaction.bean.ResourceItem;
+import transaction.exception.InvalidIndexException;
+import util.Log;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
-public class RMTable<K> implements Serializable {
-    private Hashtable<K, ResourceItem<K>> table = new Hashtable<K, ResourceItem<K>>();
+/**
+ * A main table of the committed items, or the workspace of a transaction holding its own changes over the main table.
+ */
+public class RMTable<K> implements Serializable, Iterable<ResourceItem<K>> {
+    private ConcurrentHashMap<K, ResourceItem<K>> table = new ConcurrentHashMap<K, ResourceItem<K>>();
 
     transient private RMTable<K> parent;
 
     private Hashtable<K, LockType> locks = new Hashtable<K, LockType>();
 
+    private LockType tableLock;
+
+    transient private int escalationThreshold;
+
     transient private LockManager lm;
 
     private String tableName;
 
     private long xid;
 
-    public RMTable(String tableName, RMTable<K> parent, long xid, LockManager lm) {
+    transient private String indexName;
+
+    transient private ConcurrentHashMap<Object, Set<K>> index = new ConcurrentHashMap<Object, Set<K>>();
+
+    transient private ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Set<K>>> rangeIndexes =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Set<K>>>();
+
+    transient private ConcurrentHashMap<K, Version<K>> versions = new ConcurrentHashMap<K, Version<K>>();
+
+    transient private Map<K, ResourceItem<K>> readItems = new HashMap<K, ResourceItem<K>>();
+
+    transient private Map<K, Integer> escrows = new HashMap<K, Integer>();
+
+    transient private Set<K> dirtyKeys;
+
+    transient private PartitionedEngine<K> source;
+
+    transient private AtomicIntegerArray loaded;
+
+    transient private AtomicIntegerArray referenced;
+
+    transient private AtomicIntegerArray pins;
+
+    transient private AtomicIntegerArray dirtyPartitions;
+
+    transient private List<Set<K>> partitionKeys;
+
+    transient private BufferPool pool;
+
+    transient private Pages pages;
+
+    transient private Set<Integer> pinned = new HashSet<Integer>();
+
+    public RMTable(String tableName, RMTable<K> parent, long xid, LockManager lm, int escalationThreshold) {
         this.xid = xid;
         this.tableName = tableName;
         this.parent = parent;
         this.lm = lm;
+        this.escalationThreshold = escalationThreshold;
     }
 
-    public Hashtable<K, ResourceItem<K>> table() {
+    public Map<K, ResourceItem<K>> table() {
         return table;
     }
 
@@ -53,49 +101,1057 @@ public class RMTable<K> implements Serializable {
         return tableName;
     }
 
+    /**
+     * acquire the remembered locks, the table lock covering the intentions of the row locks first
+     */
     public void relockAll() throws DeadlockException {
+        relockTable();
+        relockRows();
+    }
+
+    /**
+     * reacquire the table lock remembered, combined with the intention locks of the rows remembered,
+     * so that the table is locked against the others before the rows are
+     */
+    public void relockTable() throws DeadlockException {
+        LockType tableType = tableLock;
+        for (LockType lockType : locks.values()) {
+            tableType = tableType == null ? lockType.intention() : tableType.combine(lockType.intention());
+        }
+        if (tableType != null && !lm.lock(xid, tableName, tableType))
+            throw new RuntimeException();
+    }
+
+    /**
+     * reacquire the row locks remembered, after <code>relockTable()</code>
+     */
+    public void relockRows() throws DeadlockException {
         for (Object o : locks.entrySet()) {
             Map.Entry entry = (Map.Entry) o;
-            if (!lm.lock(xid, tableName + ":" + entry.getKey().toString(), (LockType) entry.getValue()))
+            if (!lm.lock(xid, tableName, entry.getKey(), (LockType) entry.getValue()))
                 throw new RuntimeException();
         }
     }
 
-    public void lock(K key, LockType lockType) throws DeadlockException {
-        if (!lm.lock(xid, tableName + ":" + key.toString(), lockType))
+    /**
+     * @return the keys of the row locks remembered
+     */
+    public Set<K> lockedKeys() {
+        return locks.keySet();
+    }
+
+    /**
+     * @return if the table lock held covers the given lock type on every row
+     */
+    public boolean isTableLocked(LockType lockType) {
+        return tableLock != null && tableLock.covers(lockType);
+    }
+
+    /**
+     * lock the whole table, e.g. for a full scan
+     *
+     * @return true if the table lock is acquired, or false if the table lock held covers it already
+     */
+    public boolean lockTable(LockType lockType) throws DeadlockException {
+        if (isTableLocked(lockType)) {
+            return false;
+        }
+        LockType newLock = tableLock == null ? lockType : tableLock.combine(lockType);
+        if (!lm.lock(xid, tableName, newLock))
+            throw new RuntimeException();
+        tableLock = newLock;
+        return true;
+    }
+
+    /**
+     * lock a row under the intention lock of the table, unless the table lock held covers it
+     *
+     * @return the table lock acquired by escalation, or null if not escalated
+     */
+    public LockType lock(K key, LockType lockType) throws DeadlockException {
+        if (isTableLocked(lockType)) {
+            return null;
+        }
+        lockTable(lockType.intention());
+        if (!lm.lock(xid, tableName, key, lockType))
             throw new RuntimeException();
-        locks.put(key, lockType);
+        restoreLock(key, lockType);
+        if (locks.size() > escalationThreshold) {
+            LockType escalated = locks.containsValue(LockType.WRITE) || locks.containsValue(LockType.ESCROW) ?
+                    LockType.WRITE : LockType.READ;
+            if (lockTable(escalated)) {
+                return escalated;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * remember a lock without acquiring it, which is acquired later by <code>relockAll()</code>
+     * a lock is never downgraded, but combined with the one remembered
+     */
+    public void restoreLock(K key, LockType lockType) {
+        LockType old = locks.get(key);
+        locks.put(key, old == null ? lockType : old.combine(lockType));
     }
 
+    /**
+     * remember a table lock without acquiring it, like <code>restoreLock()</code>
+     */
+    public void restoreTableLock(LockType lockType) {
+        tableLock = tableLock == null ? lockType : tableLock.combine(lockType);
+    }
+
+    /**
+     * @return the item changed by this table, or the item of the parent with the decrements of this table
+     */
     public ResourceItem<K> get(K key) {
+        pin(key);
+        fault(key);
         ResourceItem<K> item = table.get(key);
         if (item == null && parent != null) {
-            item = parent.get(key);
+            item = escrowed(key, parent.get(key));
+        }
+        return item;
+    }
+
+    /**
+     * get an item like <code>get()</code>, and remember the item read from the main table for the optimistic validation
+     */
+    public ResourceItem<K> read(K key) {
+        pin(key);
+        ResourceItem<K> item = table.get(key);
+        if (item != null || parent == null) {
+            return item;
+        }
+        item = parent.get(key);
+        recordRead(key, item);
+        return escrowed(key, item);
+    }
+
+    /**
+     * @return the item in the snapshot of the main table at the given timestamp, overridden by this table
+     */
+    public ResourceItem<K> get(K key, long snapshotTs) {
+        if (parent == null) {
+            return getVersion(key, snapshotTs);
+        }
+        pin(key);
+        ResourceItem<K> item = table.get(key);
+        return item == null ? escrowed(key, parent.get(key, snapshotTs)) : item;
+    }
+
+    /**
+     * @return a copy of the item of the parent decreased by the escrow of this table, or the item itself if none
+     */
+    private ResourceItem<K> escrowed(K key, ResourceItem<K> item) {
+        if (item == null || item.isDeleted()) {
+            return item;
+        }
+        Integer amount;
+        synchronized (escrows) {
+            if (escrows.isEmpty()) {
+                return item;
+            }
+            amount = escrows.get(key);
+        }
+        if (amount == null) {
+            return item;
         }
+        item = item.clone();
+        ((Reservable) item).decreaseAvail(amount);
         return item;
     }
 
+    /**
+     * decrease the number available of an item of the parent by escrow, which is applied on commit
+     *
+     * @return false if the item is absent, deleted, not <code>Reservable</code>,
+     * or its number available does not cover all the pending decrements with this one
+     */
+    public boolean escrow(K key, int amount) {
+        pin(key);
+        if (!parent.addEscrow(key, amount, true)) {
+            return false;
+        }
+        addEscrow(key, amount, false);
+        return true;
+    }
+
+    /**
+     * redo an escrow without checking the number available, which is covered when it is logged
+     */
+    public void restoreEscrow(K key, int amount) {
+        pin(key);
+        parent.addEscrow(key, amount, false);
+        addEscrow(key, amount, false);
+    }
+
+    private boolean addEscrow(K key, int amount, boolean check) {
+        if (check) {
+            fault(key);
+        }
+        synchronized (escrows) {
+            Integer escrowed = escrows.get(key);
+            if (check) {
+                ResourceItem<K> item = table.get(key);
+                if (item == null || item.isDeleted() || !(item instanceof Reservable) ||
+                        ((Reservable) item).numAvail() - (escrowed == null ? 0 : escrowed) < amount) {
+                    return false;
+                }
+            }
+            escrows.put(key, escrowed == null ? amount : escrowed + amount);
+            return true;
+        }
+    }
+
+    private void removeEscrow(K key, int amount) {
+        synchronized (escrows) {
+            Integer escrowed = escrows.get(key);
+            if (escrowed == null || escrowed <= amount) {
+                escrows.remove(key);
+            } else {
+                escrows.put(key, escrowed - amount);
+            }
+        }
+    }
+
+    /**
+     * @return the decrements of this workspace, which are taken over
+     */
+    private Map<K, Integer> takeEscrows() {
+        synchronized (escrows) {
+            Map<K, Integer> result = new HashMap<K, Integer>(escrows);
+            escrows.clear();
+            return result;
+        }
+    }
+
+    /**
+     * apply the decrements of a workspace committed at the given timestamp to the main table,
+     * atomically with the escrows released, so that the number available is never overestimated
+     */
+    public void commitEscrows(RMTable<K> xTable, long commitTs, boolean keepVersion) {
+        for (Map.Entry<K, Integer> entry : xTable.takeEscrows().entrySet()) {
+            fault(entry.getKey());
+            synchronized (escrows) {
+                ResourceItem<K> item = table.get(entry.getKey());
+                // covered by validateEscrows() on prepare
+                if (item == null || item.isDeleted() || ((Reservable) item).numAvail() < entry.getValue()) {
+                    Log.e("Escrow of %d on %s not covered by %s on commit", entry.getValue(), entry.getKey(), item);
+                } else {
+                    item = item.clone();
+                    ((Reservable) item).decreaseAvail(entry.getValue());
+                    commit(item, commitTs, keepVersion);
+                }
+                removeEscrow(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * drop the decrements of an aborted workspace
+     */
+    public void abortEscrows(RMTable<K> xTable) {
+        for (Map.Entry<K, Integer> entry : xTable.takeEscrows().entrySet()) {
+            removeEscrow(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private ResourceItem<K> getVersion(K key, long snapshotTs) {
+        fault(key);
+        Version<K> version = versions.get(key);
+        if (version == null) {
+            // not changed since the oldest snapshot
+            return table.get(key);
+        }
+        while (version != null && version.commitTs > snapshotTs) {
+            version = version.older;
+        }
+        return version == null ? null : version.item;
+    }
+
+    /**
+     * apply an item committed at the given timestamp to the main table, either put or removed if deleted
+     *
+     * @param keepVersion if any snapshot is taken before the commit, then the version superseded is kept for it
+     */
+    public void commit(ResourceItem<K> item, long commitTs, boolean keepVersion) {
+        K key = item.getKey();
+        fault(key);
+        if (dirtyKeys != null) {
+            dirtyKeys.add(key);
+        }
+        if (source != null) {
+            dirtyPartitions.set(source.partition(key), 1);
+        }
+        if (keepVersion) {
+            Version<K> older = versions.get(key);
+            if (older == null) {
+                // committed before all the snapshots
+                older = new Version<K>(table.get(key), 0, null);
+            }
+            // the version must be chained before the table changes, for the snapshots reading concurrently
+            versions.put(key, new Version<K>(item.isDeleted() ? null : item, commitTs, older));
+        } else {
+            versions.remove(key);
+        }
+        if (item.isDeleted()) {
+            remove(item);
+        } else {
+            put(item);
+        }
+    }
+
+    /**
+     * load the items of this main table from the partitions of a storage engine on demand,
+     * which is set while the table is empty
+     *
+     * @param pool which evicts the partitions loaded
+     */
+    public void setSource(PartitionedEngine<K> source, BufferPool pool) {
+        int partitions = source.partitions();
+        this.loaded = new AtomicIntegerArray(partitions);
+        this.referenced = new AtomicIntegerArray(partitions);
+        this.pins = new AtomicIntegerArray(partitions);
+        this.dirtyPartitions = new AtomicIntegerArray(partitions);
+        this.partitionKeys = new ArrayList<Set<K>>(partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            partitionKeys.add(Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>()));
+        }
+        this.pool = pool;
+        this.pages = new Pages();
+        this.source = source;
+        pool.register(pages);
+    }
+
+    /**
+     * pin the partition of the parent holding a key or an index value until <code>unpinAll()</code>
+     */
+    private void pin(Object key) {
+        if (parent == null || parent.source == null || key == null) {
+            return;
+        }
+        int partition = parent.source.partition(key);
+        synchronized (pinned) {
+            if (!pinned.add(partition)) {
+                return;
+            }
+        }
+        parent.pins.incrementAndGet(partition);
+    }
+
+    /**
+     * release the partitions pinned by this workspace, once its transaction ends
+     */
+    public void unpinAll() {
+        synchronized (pinned) {
+            for (Integer partition : pinned) {
+                parent.pins.decrementAndGet(partition);
+            }
+            pinned.clear();
+        }
+    }
+
+    /**
+     * load the partition of a key or an index value if not yet
+     */
+    private void fault(Object key) {
+        if (source != null && key != null) {
+            access(source.partition(key));
+        }
+    }
+
+    private void access(int partition) {
+        if (loaded.get(partition) != 0) {
+            referenced.set(partition, 1);
+            pool.hit();
+        } else {
+            load(partition);
+        }
+    }
+
+    private void load(int partition) {
+        synchronized (source) {
+            if (loaded.get(partition) != 0) {
+                return;
+            }
+            try {
+                for (ResourceItem<K> item : source.scan(partition)) {
+                    put(item);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("can't load partition " + partition + " of " + tableName, e);
+            }
+            referenced.set(partition, 1);
+            loaded.set(partition, 1);
+        }
+        // out of the lock of the source, which the pool takes to evict
+        pool.admit(pages, partition);
+    }
+
+    /**
+     * @return the items of a partition, which is pinned while loaded and read
+     */
+    private List<ResourceItem<K>> partitionItems(int partition) {
+        pins.incrementAndGet(partition);
+        try {
+            access(partition);
+            List<ResourceItem<K>> items = new ArrayList<ResourceItem<K>>();
+            for (K key : partitionKeys.get(partition)) {
+                ResourceItem<K> item = table.get(key);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return items;
+        } finally {
+            pins.decrementAndGet(partition);
+        }
+    }
+
+    /**
+     * track the keys committed to this main table, e.g. for writing only them on checkpoint
+     */
+    public void trackDirtyKeys() {
+        dirtyKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+    }
+
+    /**
+     * @return a copy of the keys committed and not cleaned yet
+     */
+    public Set<K> dirtyKeys() {
+        return new HashSet<K>(dirtyKeys);
+    }
+
+    public void clean(Collection<K> keys) {
+        dirtyKeys.removeAll(keys);
+        if (source != null) {
+            for (K key : keys) {
+                dirtyPartitions.set(source.partition(key), 0);
+            }
+            for (K key : dirtyKeys) {
+                dirtyPartitions.set(source.partition(key), 1);
+            }
+        }
+    }
+
+    /**
+     * drop the versions no snapshot can read, i.e. those superseded before the oldest snapshot,
+     * which is invoked with the commits excluded
+     *
+     * @param oldestSnapshotTs the timestamp of the oldest snapshot, or <code>Long.MAX_VALUE</code> if none
+     */
+    public void pruneVersions(long oldestSnapshotTs) {
+        Iterator<Version<K>> iterator = versions.values().iterator();
+        while (iterator.hasNext()) {
+            Version<K> version = iterator.next();
+            if (version.commitTs <= oldestSnapshotTs) {
+                // all the snapshots read the newest version, which is in the table
+                iterator.remove();
+                continue;
+            }
+            while (version.older != null && version.older.commitTs > oldestSnapshotTs) {
+                version = version.older;
+            }
+            if (version.older != null) {
+                version.older.older = null;
+            }
+        }
+    }
+
     public void put(ResourceItem<K> item) {
-        table.put(item.getKey(), item);
+        K key = item.getKey();
+        if (source != null) {
+            partitionKeys.get(source.partition(key)).add(key);
+        }
+        if (parent != null) {
+            pin(key);
+            // the item put is changed from the one decreased by this workspace, which covers the escrow
+            Integer amount;
+            synchronized (escrows) {
+                amount = escrows.isEmpty() ? null : escrows.remove(key);
+            }
+            if (amount != null) {
+                parent.removeEscrow(key, amount);
+            }
+        }
+        ResourceItem<K> old = table.put(key, item);
+        if (indexName == null) {
+            indexName = item.getColumnNames()[0];
+        }
+        Object indexVal = item.getIndex(indexName);
+        if (old != null) {
+            Object oldIndexVal = old.getIndex(indexName);
+            if (oldIndexVal != null && !oldIndexVal.equals(indexVal)) {
+                unindex(oldIndexVal, key);
+            }
+        }
+        if (indexVal != null) {
+            index(indexVal, key);
+        }
+        if (item instanceof Ranged) {
+            rangeIndex(key, item);
+        }
+        if (old instanceof Ranged) {
+            rangeUnindex(key, old, item);
+        }
     }
 
     public void remove(ResourceItem<K> item) {
-        table.remove(item.getKey());
+        K key = item.getKey();
+        ResourceItem<K> old = table.remove(key);
+        if (source != null) {
+            partitionKeys.get(source.partition(key)).remove(key);
+        }
+        unindexItem(key, old);
+    }
+
+    /**
+     * drop the key of an item removed from the indexes
+     */
+    private void unindexItem(K key, ResourceItem<K> old) {
+        if (old != null) {
+            Object oldIndexVal = old.getIndex(indexName);
+            if (oldIndexVal != null) {
+                unindex(oldIndexVal, key);
+            }
+            if (old instanceof Ranged) {
+                rangeUnindex(key, old, null);
+            }
+        }
+    }
+
+    private void index(Object indexVal, K key) {
+        Set<K> keys = index.get(indexVal);
+        if (keys == null) {
+            Set<K> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+            keys = index.putIfAbsent(indexVal, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+        keys.add(key);
+    }
+
+    private void unindex(Object indexVal, K key) {
+        Set<K> keys = index.get(indexVal);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * add the key to the ordered indexes by the values of the item, before the old values are dropped,
+     * so that a concurrent lookup never misses the key
+     */
+    private void rangeIndex(K key, ResourceItem<K> item) {
+        Ranged ranged = (Ranged) item;
+        for (String column : ranged.rangeColumns()) {
+            ConcurrentSkipListMap<Integer, Set<K>> rangeIndex = rangeIndexes.get(column);
+            if (rangeIndex == null) {
+                ConcurrentSkipListMap<Integer, Set<K>> newIndex = new ConcurrentSkipListMap<Integer, Set<K>>();
+                rangeIndex = rangeIndexes.putIfAbsent(column, newIndex);
+                if (rangeIndex == null) {
+                    rangeIndex = newIndex;
+                }
+            }
+            int value = ranged.rangeValue(column);
+            Set<K> keys = rangeIndex.get(value);
+            if (keys == null) {
+                Set<K> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+                keys = rangeIndex.putIfAbsent(value, newKeys);
+                if (keys == null) {
+                    keys = newKeys;
+                }
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * drop the key from the ordered indexes by the values of the old item, except those the new item keeps
+     *
+     * @param item the new item, or null if removed
+     */
+    private void rangeUnindex(K key, ResourceItem<K> old, ResourceItem<K> item) {
+        Ranged ranged = (Ranged) old;
+        for (String column : ranged.rangeColumns()) {
+            int value = ranged.rangeValue(column);
+            if (item instanceof Ranged && ((Ranged) item).rangeValue(column) == value) {
+                continue;
+            }
+            ConcurrentSkipListMap<Integer, Set<K>> rangeIndex = rangeIndexes.get(column);
+            Set<K> keys = rangeIndex == null ? null : rangeIndex.get(value);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * remember the item read from the main table for the optimistic validation,
+     * which is null if absent, unless this table has changed the item
+     */
+    public void recordRead(K key, ResourceItem<K> item) {
+        if (parent == null || table.containsKey(key)) {
+            return;
+        }
+        synchronized (readItems) {
+            if (!readItems.containsKey(key)) {
+                readItems.put(key, item);
+            }
+        }
+    }
+
+    /**
+     * @return if the main table still holds all the items read
+     */
+    public boolean validateReads() {
+        synchronized (readItems) {
+            for (Map.Entry<K, ResourceItem<K>> entry : readItems.entrySet()) {
+                if (parent.table.get(entry.getKey()) != entry.getValue()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return if the given workspace of another transaction changes any item read, changed or escrowed by this one,
+     * or escrows any item changed by this one
+     */
+    public boolean conflicts(RMTable<K> other) {
+        for (K key : other.table.keySet()) {
+            if (table.containsKey(key)) {
+                return true;
+            }
+            synchronized (readItems) {
+                if (readItems.containsKey(key)) {
+                    return true;
+                }
+            }
+            synchronized (escrows) {
+                if (escrows.containsKey(key)) {
+                    return true;
+                }
+            }
+        }
+        synchronized (other.escrows) {
+            for (K key : other.escrows.keySet()) {
+                if (table.containsKey(key)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return if the main table still holds all the items escrowed by this table,
+     * with their numbers available covering all the pending decrements
+     */
+    public boolean validateEscrows() {
+        List<K> keys;
+        synchronized (escrows) {
+            keys = new ArrayList<K>(escrows.keySet());
+        }
+        for (K key : keys) {
+            if (!parent.coversEscrow(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean coversEscrow(K key) {
+        fault(key);
+        synchronized (escrows) {
+            ResourceItem<K> item = table.get(key);
+            Integer escrowed = escrows.get(key);
+            return item != null && !item.isDeleted() && item instanceof Reservable &&
+                    ((Reservable) item).numAvail() >= (escrowed == null ? 0 : escrowed);
+        }
+    }
+
+    /**
+     * look up the secondary index, merging the changes of this table with its parent
+     *
+     * @param indexName the indexName to query
+     * @param indexVal  the index value to query
+     * @return all the items not deleted with the given index value
+     * @throws InvalidIndexException if indexName is not the index column of the items
+     */
+    public List<ResourceItem<K>> lookup(String indexName, Object indexVal) {
+        pin(indexVal);
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        lookupOwn(indexName, indexVal, result);
+        if (parent != null) {
+            int ownSize = result.size();
+            parent.lookupOwn(indexName, indexVal, result);
+            // drop the items of the parent overridden by this table
+            if (!table.isEmpty()) {
+                ListIterator<ResourceItem<K>> iterator = result.listIterator(ownSize);
+                while (iterator.hasNext()) {
+                    if (table.containsKey(iterator.next().getKey())) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * look up the secondary index in the snapshot of the main table at the given timestamp,
+     * merging the changes of this table over it
+     *
+     * @throws InvalidIndexException if indexName is not the index column of the items
+     */
+    public List<ResourceItem<K>> lookup(String indexName, Object indexVal, long snapshotTs) {
+        if (parent == null) {
+            return lookupVersions(indexName, indexVal, snapshotTs);
+        }
+        pin(indexVal);
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        lookupOwn(indexName, indexVal, result);
+        for (ResourceItem<K> item : parent.lookupVersions(indexName, indexVal, snapshotTs)) {
+            if (!table.containsKey(item.getKey())) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private List<ResourceItem<K>> lookupVersions(String indexName, Object indexVal, long snapshotTs) {
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        fault(indexVal);
+        if (this.indexName == null) {
+            return result;
+        }
+        if (!this.indexName.equals(indexName)) {
+            throw new InvalidIndexException(indexName);
+        }
+        // the index holds the newest versions only, so the keys with older versions are checked as well
+        Set<K> keys = new HashSet<K>(versions.keySet());
+        Set<K> indexed = index.get(indexVal);
+        if (indexed != null) {
+            keys.addAll(indexed);
+        }
+        for (K key : keys) {
+            ResourceItem<K> item = getVersion(key, snapshotTs);
+            if (item != null && !item.isDeleted() && indexVal.equals(item.getIndex(indexName))) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private void lookupOwn(String indexName, Object indexVal, List<ResourceItem<K>> result) {
+        fault(indexVal);
+        if (this.indexName == null) {
+            return;
+        }
+        if (!this.indexName.equals(indexName)) {
+            throw new InvalidIndexException(indexName);
+        }
+        Set<K> keys = index.get(indexVal);
+        if (keys != null) {
+            for (K key : keys) {
+                ResourceItem<K> item = table.get(key);
+                // the item may be changed concurrently
+                if (item != null && !item.isDeleted() && indexVal.equals(item.getIndex(indexName))) {
+                    result.add(item);
+                }
+            }
+        }
     }
 
-    public Set<K> keySet() {
-        HashSet<K> result = new HashSet<K>(table.keySet());
+    /**
+     * look up the ordered index of the column of the first range, and filter the items by all the ranges,
+     * merging the changes of this table with its parent like <code>lookup()</code>
+     *
+     * @return all the items not deleted in the ranges
+     * @throws InvalidIndexException if a column is not an int column of the items
+     */
+    public List<ResourceItem<K>> lookupRange(Range[] ranges) {
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        lookupRangeOwn(ranges, result);
         if (parent != null) {
-            result.addAll(parent.table.keySet());
+            List<ResourceItem<K>> items = new ArrayList<ResourceItem<K>>();
+            parent.lookupRangeOwn(ranges, items);
+            mergeRange(ranges, items, result, -1);
+        }
+        return result;
+    }
+
+    /**
+     * look up the ranges in the snapshot of the main table at the given timestamp,
+     * merging the changes of this table over it
+     *
+     * @throws InvalidIndexException if a column is not an int column of the items
+     */
+    public List<ResourceItem<K>> lookupRange(Range[] ranges, long snapshotTs) {
+        if (parent == null) {
+            return lookupRangeVersions(ranges, snapshotTs);
+        }
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        lookupRangeOwn(ranges, result);
+        mergeRange(ranges, parent.lookupRangeVersions(ranges, snapshotTs), result, snapshotTs);
+        return result;
+    }
+
+    /**
+     * add the items of the parent in the ranges to the result unless overridden by this table,
+     * where the items escrowed by this table are decreased and checked again, since the ranges may cover them only then
+     *
+     * @param snapshotTs the timestamp of the snapshot the items are read in, or -1 for the newest ones
+     */
+    private void mergeRange(Range[] ranges, List<ResourceItem<K>> items, List<ResourceItem<K>> result, long snapshotTs) {
+        Set<K> escrowed;
+        synchronized (escrows) {
+            escrowed = escrows.isEmpty() ? Collections.<K>emptySet() : new HashSet<K>(escrows.keySet());
+        }
+        for (ResourceItem<K> item : items) {
+            if (!table.containsKey(item.getKey()) && !escrowed.contains(item.getKey())) {
+                result.add(item);
+            }
+        }
+        for (K key : escrowed) {
+            if (table.containsKey(key)) {
+                continue;
+            }
+            ResourceItem<K> item = escrowed(key, snapshotTs < 0 ? parent.get(key) : parent.get(key, snapshotTs));
+            if (item != null && !item.isDeleted() && matches(ranges, item)) {
+                result.add(item);
+            }
+        }
+    }
+
+    private List<ResourceItem<K>> lookupRangeVersions(Range[] ranges, long snapshotTs) {
+        List<ResourceItem<K>> newest = new ArrayList<ResourceItem<K>>();
+        lookupRangeOwn(ranges, newest);
+        // the indexes hold the newest versions only, so the keys with older versions are checked as well
+        Set<K> keys = new HashSet<K>(versions.keySet());
+        for (ResourceItem<K> item : newest) {
+            keys.add(item.getKey());
+        }
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        for (K key : keys) {
+            ResourceItem<K> item = getVersion(key, snapshotTs);
+            if (item != null && !item.isDeleted() && matches(ranges, item)) {
+                result.add(item);
+            }
         }
         return result;
     }
 
+    private void lookupRangeOwn(Range[] ranges, List<ResourceItem<K>> result) {
+        if (source != null || ranges.length == 0) {
+            // the ordered indexes cover the partitions loaded only, so all the partitions are scanned
+            Iterator<ResourceItem<K>> items = scan();
+            while (items.hasNext()) {
+                ResourceItem<K> item = items.next();
+                if (!item.isDeleted() && matches(ranges, item)) {
+                    result.add(item);
+                }
+            }
+            return;
+        }
+        ConcurrentSkipListMap<Integer, Set<K>> rangeIndex = rangeIndexes.get(ranges[0].column());
+        if (rangeIndex == null) {
+            if (!table.isEmpty()) {
+                throw new InvalidIndexException(ranges[0].column());
+            }
+            return;
+        }
+        // a key is indexed by both its old and new values while changed concurrently
+        Set<K> found = new HashSet<K>();
+        for (Set<K> keys : rangeIndex.subMap(ranges[0].low(), true, ranges[0].high(), true).values()) {
+            for (K key : keys) {
+                ResourceItem<K> item = table.get(key);
+                // the item may be changed concurrently
+                if (item != null && !item.isDeleted() && matches(ranges, item) && found.add(key)) {
+                    result.add(item);
+                }
+            }
+        }
+    }
+
+    private static boolean matches(Range[] ranges, ResourceItem<?> item) {
+        for (Range range : ranges) {
+            if (!range.matches(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index = new ConcurrentHashMap<Object, Set<K>>();
+        rangeIndexes = new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Set<K>>>();
+        versions = new ConcurrentHashMap<K, Version<K>>();
+        readItems = new HashMap<K, ResourceItem<K>>();
+        escrows = new HashMap<K, Integer>();
+        pinned = new HashSet<Integer>();
+        for (Map.Entry<K, ResourceItem<K>> entry : table.entrySet()) {
+            ResourceItem<K> item = entry.getValue();
+            if (indexName == null) {
+                indexName = item.getColumnNames()[0];
+            }
+            Object indexVal = item.getIndex(indexName);
+            if (indexVal != null) {
+                index(indexVal, entry.getKey());
+            }
+            if (item instanceof Ranged) {
+                rangeIndex(entry.getKey(), item);
+            }
+        }
+    }
+
+    /**
+     * @return an iterator over the items of this table, including the deleted ones,
+     * followed by the items of the parent not overridden by this table
+     */
+    @Override
+    public Iterator<ResourceItem<K>> iterator() {
+        return new OverlayIterator();
+    }
+
+    /**
+     * @return an iterator over the items of this table, partition by partition if loaded on demand
+     */
+    private Iterator<ResourceItem<K>> scan() {
+        return source == null ? table.values().iterator() : new PartitionIterator();
+    }
+
+    private class OverlayIterator implements Iterator<ResourceItem<K>> {
+        private final Iterator<ResourceItem<K>> own = parent == null ? scan() : table.values().iterator();
+        private final Iterator<ResourceItem<K>> inherited = parent == null ? null : parent.scan();
+        private ResourceItem<K> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (own.hasNext()) {
+                next = own.next();
+                return true;
+            }
+            while (inherited != null && inherited.hasNext()) {
+                ResourceItem<K> item = inherited.next();
+                if (table.isEmpty() || !table.containsKey(item.getKey())) {
+                    next = item;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public ResourceItem<K> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ResourceItem<K> result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * iterator over the partitions of a main table loaded on demand, which loads them one by one
+     */
+    private class PartitionIterator implements Iterator<ResourceItem<K>> {
+        private int partition;
+        private Iterator<ResourceItem<K>> items = Collections.<ResourceItem<K>>emptyList().iterator();
+
+        @Override
+        public boolean hasNext() {
+            while (!items.hasNext() && partition < partitionKeys.size()) {
+                items = partitionItems(partition++).iterator();
+            }
+            return items.hasNext();
+        }
+
+        @Override
+        public ResourceItem<K> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return items.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * the partitions of this main table as seen by the buffer pool
+     */
+    private class Pages implements BufferPool.Pages {
+        @Override
+        public int resident() {
+            return table.size();
+        }
+
+        @Override
+        public boolean referenced(int page) {
+            return referenced.getAndSet(page, 0) != 0;
+        }
+
+        @Override
+        public boolean evict(int page) {
+            synchronized (source) {
+                if (loaded.get(page) == 0 || dirtyPartitions.get(page) != 0) {
+                    return false;
+                }
+                // unloaded before the pins are checked, see pin() and fault()
+                loaded.set(page, 0);
+                if (pins.get(page) != 0 || dirtyPartitions.get(page) != 0) {
+                    loaded.set(page, 1);
+                    return false;
+                }
+                for (K key : partitionKeys.get(page)) {
+                    unindexItem(key, table.remove(key));
+                }
+                partitionKeys.get(page).clear();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * a committed version of an item, where a null item stands for a deleted or absent one
+     */
+    private static class Version<K> {
+        private final ResourceItem<K> item;
+        private final long commitTs;
+        private Version<K> older;
+
+        Version(ResourceItem<K> item, long commitTs, Version<K> older) {
+            this.item = item;
+            this.commitTs = commitTs;
+            this.older = older;
+        }
+    }
+
     @Override
     public String toString() {
         return "RMTable{" +
                 "xid=" + xid +
                 ", tableName='" + tableName + '\'' +
+                ", tableLock=" + tableLock +
                 ", locks=" + locks +
                 ", table=" + table +
                 '}';
@@ -0,0 +1,280 @@
+package transaction.host.rm;
+
+import lockmgr.LockType;
+import transaction.bean.Codecs;
+import transaction.bean.ResourceItem;
+import util.GroupCommitLog;
+import util.IOUtil;
+import util.Log;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only redo log of a RM, where <code>K</code> is the type of the key of the ResourceItem Managed by RM.
+ * A record is encoded by <code>Codecs</code>, while a log written by Java serialization before is still read.
+ */
+public class RedoLog<K> {
+    public static final String FILE_NAME = "redo.log";
+    private static final byte FORMAT = 1;
+    private static final int DECODE_THRESHOLD = 1024;
+
+    private final GroupCommitLog log;
+
+    public RedoLog(GroupCommitLog log) {
+        this.log = log;
+    }
+
+    /**
+     * open the log for appending, decoding the records in parallel on the given pool
+     *
+     * @return all the valid records in the log, in the order they were appended
+     * @throws IOException if the log cannot be read or opened
+     */
+    public List<Record<K>> open(ForkJoinPool pool) throws IOException {
+        List<byte[]> data = log.open();
+        AtomicReferenceArray<Record<K>> records = new AtomicReferenceArray<Record<K>>(data.size());
+        try {
+            pool.invoke(new DecodeTask(data, records, 0, records.length()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<Record<K>> result = new ArrayList<Record<K>>(records.length());
+        for (int i = 0; i < records.length(); i++) {
+            result.add(records.get(i));
+        }
+        return result;
+    }
+
+    public void close() {
+        log.close();
+    }
+
+    /**
+     * append records to the log, and block until they are synced to the disk
+     *
+     * @param records records to append
+     * @return true if the records are written successfully
+     */
+    public boolean append(Collection<Record<K>> records) {
+        try {
+            List<byte[]> data = new ArrayList<byte[]>(records.size());
+            for (Record<K> record : records) {
+                data.add(encode(record));
+            }
+            log.append(data);
+            return true;
+        } catch (IOException e) {
+            Log.e("%s: append error %s", FILE_NAME, e);
+            return false;
+        }
+    }
+
+    /**
+     * rewrite the log with only the records of transactions neither committed nor aborted,
+     * which is invoked after all main tables are checkpointed
+     *
+     * @return true if the log is compacted successfully
+     */
+    public boolean compact() {
+        try {
+            log.compact(new GroupCommitLog.Compactor() {
+                @Override
+                public List<byte[]> compact(List<byte[]> data) throws IOException {
+                    List<Record<K>> records = decode(data);
+                    Set<Long> finished = new HashSet<Long>();
+                    for (Record<K> record : records) {
+                        if (record.type == Type.COMMIT || record.type == Type.ABORT) {
+                            finished.add(record.xid);
+                        }
+                    }
+                    List<byte[]> result = new ArrayList<byte[]>();
+                    for (int i = 0; i < records.size(); i++) {
+                        if (!finished.contains(records.get(i).xid)) {
+                            result.add(data.get(i));
+                        }
+                    }
+                    return result;
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            Log.e("%s: compact error %s", FILE_NAME, e);
+            return false;
+        }
+    }
+
+    private List<Record<K>> decode(List<byte[]> data) throws IOException {
+        List<Record<K>> records = new ArrayList<Record<K>>(data.size());
+        for (byte[] record : data) {
+            records.add(record.length > 0 && record[0] == FORMAT ? decode(record) : IOUtil.<Record<K>>fromBytes(record));
+        }
+        return records;
+    }
+
+    /**
+     * decode the records in a range, splitting it in halves down to <code>DECODE_THRESHOLD</code> records
+     */
+    private class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<byte[]> data;
+        private final AtomicReferenceArray<Record<K>> records;
+        private final int from, to;
+
+        DecodeTask(List<byte[]> data, AtomicReferenceArray<Record<K>> records, int from, int to) {
+            this.data = data;
+            this.records = records;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > DECODE_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeTask(data, records, from, middle), new DecodeTask(data, records, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                byte[] record = data.get(i);
+                try {
+                    records.set(i, record.length > 0 && record[0] == FORMAT ? decode(record) : IOUtil.<Record<K>>fromBytes(record));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    private byte[] encode(Record<K> record) {
+        for (int size = 128; ; size <<= 1) {
+            try {
+                ByteBuffer out = ByteBuffer.allocate(size);
+                out.put(FORMAT).put((byte) record.type.ordinal()).putLong(record.xid);
+                Codecs.putString(out, record.table);
+                Codecs.write(record.key, out);
+                Codecs.write(record.item, out);
+                out.put((byte) (record.lockType == null ? -1 : record.lockType.ordinal())).putInt(record.amount);
+                return Arrays.copyOf(out.array(), out.position());
+            } catch (BufferOverflowException ignored) {
+            }
+        }
+    }
+
+    private Record<K> decode(byte[] data) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+            Type type = valueOf(Type.values(), in.get());
+            long xid = in.getLong();
+            String table = Codecs.getString(in);
+            K key = Codecs.read(in);
+            ResourceItem<K> item = Codecs.read(in);
+            byte lockType = in.get();
+            return new Record<K>(type, xid, table, key, item, lockType < 0 ? null : valueOf(LockType.values(), lockType),
+                    in.getInt());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("broken record", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("broken record", e);
+        }
+    }
+
+    private static <E extends Enum<E>> E valueOf(E[] values, byte ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("broken record: no " + values[0].getDeclaringClass().getSimpleName() + " of " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    public enum Type {
+        LOCK, PUT, DELETE, PREPARE, COMMIT, ABORT, ESCROW
+    }
+
+    /**
+     * One record of the redo log
+     */
+    public static class Record<K> implements Serializable {
+        // the default computed for the records written by Java serialization before the binary format,
+        // which the log still reads
+        private static final long serialVersionUID = 2235137452352296277L;
+        private final Type type;
+        private final long xid;
+        private final String table;
+        private final K key;
+        private final ResourceItem<K> item;
+        private final LockType lockType;
+        private final int amount;
+
+        private Record(Type type, long xid, String table, K key, ResourceItem<K> item, LockType lockType, int amount) {
+            this.type = type;
+            this.xid = xid;
+            this.table = table;
+            this.key = key;
+            this.item = item;
+            this.lockType = lockType;
+            this.amount = amount;
+        }
+
+        public static <K> Record<K> lock(long xid, String table, K key, LockType lockType) {
+            return new Record<K>(Type.LOCK, xid, table, key, null, lockType, 0);
+        }
+
+        public static <K> Record<K> put(long xid, String table, ResourceItem<K> item) {
+            return new Record<K>(Type.PUT, xid, table, item.getKey(), item, null, 0);
+        }
+
+        public static <K> Record<K> delete(long xid, String table, K key) {
+            return new Record<K>(Type.DELETE, xid, table, key, null, null, 0);
+        }
+
+        public static <K> Record<K> escrow(long xid, String table, K key, int amount) {
+            return new Record<K>(Type.ESCROW, xid, table, key, null, LockType.ESCROW, amount);
+        }
+
+        public static <K> Record<K> end(Type type, long xid) {
+            return new Record<K>(type, xid, null, null, null, null, 0);
+        }
+
+        public Type type() {
+            return type;
+        }
+
+        public long xid() {
+            return xid;
+        }
+
+        public String table() {
+            return table;
+        }
+
+        public K key() {
+            return key;
+        }
+
+        public ResourceItem<K> item() {
+            return item;
+        }
+
+        public LockType lockType() {
+            return lockType;
+        }
+
+        public int amount() {
+            return amount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{%s:%d,%s,%s,%s}", type, xid, table, key,
+                    type == Type.PUT ? item : type == Type.ESCROW ? amount : lockType);
+        }
+    }
+}
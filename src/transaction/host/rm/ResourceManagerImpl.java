@@ -1,8 +1,12 @@
 package transaction.host.rm;
 
 import lockmgr.DeadlockException;
+import lockmgr.DeadlockPolicy;
 import lockmgr.LockManager;
 import lockmgr.LockType;
+import lockmgr.VictimPolicy;
+import transaction.bean.Range;
+import transaction.bean.Reservable;
 import transaction.bean.ResourceItem;
 import transaction.core.DieTime;
 import transaction.core.Host;
@@ -12,15 +16,23 @@ import transaction.exception.IllegalTransactionStateException;
 import transaction.exception.InvalidTransactionException;
 import transaction.exception.ResourceManagerUnaccessibleException;
 import transaction.exception.TransactionManagerUnaccessibleException;
+import util.GroupCommitLog;
 import util.IOUtil;
 import util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implementation of Resource Manager for the Distributed Travel Reservation System,
@@ -30,18 +42,72 @@ import java.util.List;
  */
 
 public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
-    private final static String TRANSACTION_LOG_FILENAME = "transactions.log";
+    final static String TRANSACTION_LOG_FILENAME = "transactions.log";
+    private final static int CHECKPOINT_INTERVAL = 100;
     private HashSet<Long> xids;
     private LockManager lm;
     private Hashtable<Long, Hashtable<String, RMTable<K>>> tables;
     private TMDaemon tmDaemon;
+    private RedoLog<K> redoLog;
+    private GroupCommitLog xidLog;
+    private ReadWriteLock checkpointLock;
+    private AtomicInteger commitCount;
+    private Class<? extends ResourceItem<K>> itemClass;
+    private Storage storage;
+    private Hashtable<String, StorageEngine<K>> engines;
+    private int partitions;
+    private BufferPool bufferPool;
+    private boolean logReadLocks;
+    private boolean optimistic;
+    private Map<Long, Collection<RMTable<K>>> validated;
+    private int lockEscalationThreshold;
+    private Set<Long> recoveryAborted;
+    private ForkJoinPool recoveryPool;
+    private volatile CountDownLatch restored;
+    private volatile CountDownLatch released;
+    private Set<Long> restoringXids;
+    private Set<Long> unrelockedXids;
+    private Hashtable<String, Set<K>> inDoubtKeys;
+    private HashMap<Long, Long> snapshots;
+    private long versionClock;
 
     public ResourceManagerImpl(HostName rmiName) throws RemoteException {
+        this(rmiName, null);
+    }
+
+    /**
+     * @param itemClass the class of the items, which is required by the mapped storage
+     */
+    public ResourceManagerImpl(HostName rmiName, Class<? extends ResourceItem<K>> itemClass) throws RemoteException {
         super(rmiName);
+        this.itemClass = itemClass;
+        storage = Storage.valueOf(getRMProperty("storage", "serialized").toUpperCase());
+        if (storage == Storage.MAPPED && itemClass == null) {
+            Log.e("%s has no item class for the mapped storage, use the serialized one", rmiName);
+            storage = Storage.SERIALIZED;
+        }
+        engines = new Hashtable<String, StorageEngine<K>>();
+        partitions = Integer.parseInt(getRMProperty("partitions", "64"));
+        bufferPool = new BufferPool(Integer.parseInt(getRMProperty("cacheSize", "0")));
+        logReadLocks = Boolean.parseBoolean(getRMProperty("logReadLocks", "true"));
+        optimistic = getRMProperty("concurrencyControl", "2PL").equalsIgnoreCase("OCC");
+        validated = new HashMap<Long, Collection<RMTable<K>>>();
+        lockEscalationThreshold = Integer.parseInt(getRMProperty("lockEscalationThreshold", "1000"));
+        recoveryAborted = Collections.synchronizedSet(new HashSet<Long>());
+        recoveryPool = new ForkJoinPool(Integer.parseInt(getRMProperty("recoveryParallelism",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        restored = new CountDownLatch(0);
+        released = new CountDownLatch(0);
+        restoringXids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        unrelockedXids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        inDoubtKeys = new Hashtable<String, Set<K>>();
+        snapshots = new HashMap<Long, Long>();
         xids = new HashSet<Long>();
-        lm = new LockManager();
+        lm = newLockManager();
         tables = new Hashtable<Long, Hashtable<String, RMTable<K>>>();
         tmDaemon = new TMDaemon();
+        checkpointLock = new ReentrantReadWriteLock();
+        commitCount = new AtomicInteger();
     }
 
     public void start() {
@@ -61,8 +127,26 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         tmDaemon.interrupt();
         xids.clear();
         tables.clear();
+        for (StorageEngine<K> engine : engines.values()) {
+            engine.close();
+        }
+        engines.clear();
+        bufferPool.clear();
+        synchronized (validated) {
+            validated.clear();
+        }
+        synchronized (snapshots) {
+            snapshots.clear();
+        }
+        restoringXids.clear();
+        unrelockedXids.clear();
+        inDoubtKeys.clear();
+        restored.countDown();
+        released.countDown();
+        redoLog.close();
+        xidLog.close();
         lm.shutdown();
-        Log.i(myRMIName.name() + " died");
+        Log.i("%s died", myRMIName.name());
         throw new ResourceManagerUnaccessibleException(myRMIName);
     }
 
@@ -72,9 +156,10 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         if (hasDead) {
             Log.i("%s reconnected", myRMIName.name());
             dieTime = DieTime.NO_DIE;
+            // recovered workspaces relock with the new lock manager
+            lm = newLockManager();
             recover();
             tmDaemon = new TMDaemon();
-            lm = new LockManager();
             tmDaemon.start();
             lm.start();
         }
@@ -97,12 +182,11 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         addXid(xid);
 
         RMTable<K> table = getXTable(xid, myRMIName.name());
-        ResourceItem<K> item = table.get(key);
+        ResourceItem<K> item = read(table, key);
         if (item != null && !item.isDeleted()) {
-            table.lock(key, LockType.READ);
-            if (!storeTable(xid, myRMIName.name(), table)) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
+            lock(xid, table, key, LockType.READ, records);
+            writeLog(records);
             return item;
         }
         return null;
@@ -113,27 +197,119 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         addXid(xid);
 
         List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
         RMTable<K> table = getXTable(xid, myRMIName.name());
 
         synchronized (table) {
-            for (K key : table.keySet()) {
-                ResourceItem<K> item = table.get(key);
-                if (item != null && !item.isDeleted()) {
-                    if (indexName == null || item.getIndex(indexName).equals(indexVal)) {
-                        table.lock(key, LockType.READ);
-                        result.add(item);
-                    }
+            // a full scan locks the whole table, which also keeps the rows inserted meanwhile out
+            if (indexName == null && !optimistic && table.lockTable(LockType.READ) && logReadLocks) {
+                records.add(RedoLog.Record.<K>lock(xid, table.getTableName(), null, LockType.READ));
+            }
+            for (ResourceItem<K> item : indexName == null ? table : table.lookup(indexName, indexVal)) {
+                if (optimistic) {
+                    table.recordRead(item.getKey(), item);
                 }
+                if (!item.isDeleted()) {
+                    lock(xid, table, item.getKey(), LockType.READ, records);
+                    result.add(item);
+                }
+            }
+            writeLog(records);
+        }
+        return result;
+    }
+
+    @Override
+    public List<ResourceItem<K>> queryRange(long xid, Range... ranges) throws DeadlockException, RemoteException {
+        addXid(xid);
+
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
+        RMTable<K> table = getXTable(xid, myRMIName.name());
+
+        synchronized (table) {
+            // a range locks the whole table like a full scan, which also keeps the rows entering it meanwhile out
+            if (!optimistic && table.lockTable(LockType.READ) && logReadLocks) {
+                records.add(RedoLog.Record.<K>lock(xid, table.getTableName(), null, LockType.READ));
             }
-            if (!result.isEmpty()) {
-                if (!storeTable(xid, myRMIName.name(), table)) {
-                    throw new RemoteException("System Error: Can't write table to disk!");
+            for (ResourceItem<K> item : table.lookupRange(ranges)) {
+                if (optimistic) {
+                    // the item escrowed by the transaction is a copy, so the one of the main table is read instead
+                    table.read(item.getKey());
                 }
+                lock(xid, table, item.getKey(), LockType.READ, records);
+                result.add(item);
             }
+            writeLog(records);
         }
         return result;
     }
 
+    @Override
+    public ResourceItem<K> querySnapshot(long xid, K key) throws RemoteException {
+        addXid(xid);
+
+        ResourceItem<K> item = getXTable(xid, myRMIName.name()).get(key, snapshotTs(xid));
+        return item == null || item.isDeleted() ? null : item;
+    }
+
+    @Override
+    public List<ResourceItem<K>> querySnapshot(long xid, String indexName, Object indexVal) throws RemoteException {
+        addXid(xid);
+
+        List<ResourceItem<K>> result = new ArrayList<ResourceItem<K>>();
+        for (ResourceItem<K> item : getXTable(xid, myRMIName.name()).lookup(indexName, indexVal, snapshotTs(xid))) {
+            if (!item.isDeleted()) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<ResourceItem<K>> queryRangeSnapshot(long xid, Range... ranges) throws RemoteException {
+        addXid(xid);
+
+        return getXTable(xid, myRMIName.name()).lookupRange(ranges, snapshotTs(xid));
+    }
+
+    /**
+     * @return the timestamp of the snapshot of the transaction, which is taken on its first snapshot read,
+     * and covers all the transactions committed before it
+     */
+    private long snapshotTs(long xid) {
+        synchronized (snapshots) {
+            Long snapshotTs = snapshots.get(xid);
+            if (snapshotTs == null) {
+                snapshotTs = versionClock;
+                snapshots.put(xid, snapshotTs);
+            }
+            return snapshotTs;
+        }
+    }
+
+    /**
+     * release the snapshot of the transaction, and prune the versions no snapshot can read any more
+     */
+    private void releaseSnapshot(long xid) {
+        synchronized (snapshots) {
+            Long snapshotTs = snapshots.remove(xid);
+            if (snapshotTs == null) {
+                return;
+            }
+            long oldestSnapshotTs = Long.MAX_VALUE;
+            for (long ts : snapshots.values()) {
+                oldestSnapshotTs = Math.min(oldestSnapshotTs, ts);
+            }
+            Hashtable<String, RMTable<K>> mainTables = tables.get(-1L);
+            if (snapshotTs < oldestSnapshotTs && mainTables != null) {
+                for (RMTable<K> table : mainTables.values()) {
+                    table.pruneVersions(oldestSnapshotTs);
+                }
+            }
+        }
+    }
+
     @Override
     public boolean update(long xid, K key, ResourceItem<K> newItem) throws DeadlockException, RemoteException {
         if (!key.equals(newItem.getKey()))
@@ -142,13 +318,13 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         addXid(xid);
 
         RMTable<K> table = getXTable(xid, myRMIName.name());
-        ResourceItem<K> item = table.get(key);
+        ResourceItem<K> item = read(table, key);
         if (item != null && !item.isDeleted()) {
-            table.lock(key, LockType.WRITE);
+            List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
+            lock(xid, table, key, LockType.WRITE, records);
             table.put(newItem);
-            if (!storeTable(xid, myRMIName.name(), table)) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            records.add(RedoLog.Record.put(xid, table.getTableName(), newItem));
+            writeLog(records);
             return true;
         }
         return false;
@@ -159,15 +335,15 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         addXid(xid);
 
         RMTable<K> table = getXTable(xid, myRMIName.name());
-        ResourceItem<K> item = table.get(newItem.getKey());
+        ResourceItem<K> item = read(table, newItem.getKey());
         if (item != null && !item.isDeleted()) {
             return false;
         }
-        table.lock(newItem.getKey(), LockType.WRITE);
+        List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
+        lock(xid, table, newItem.getKey(), LockType.WRITE, records);
         table.put(newItem);
-        if (!storeTable(xid, myRMIName.name(), table)) {
-            throw new RemoteException("System Error: Can't write table to disk!");
-        }
+        records.add(RedoLog.Record.put(xid, table.getTableName(), newItem));
+        writeLog(records);
         return true;
     }
 
@@ -176,15 +352,15 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         addXid(xid);
 
         RMTable<K> table = getXTable(xid, myRMIName.name());
-        ResourceItem<K> item = table.get(key);
+        ResourceItem<K> item = read(table, key);
         if (item != null && !item.isDeleted()) {
-            table.lock(key, LockType.WRITE);
+            List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
+            lock(xid, table, key, LockType.WRITE, records);
             item = item.clone();
             item.delete();
             table.put(item);
-            if (!storeTable(xid, myRMIName.name(), table)) {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            records.add(RedoLog.Record.delete(xid, table.getTableName(), key));
+            writeLog(records);
             return true;
         }
         return false;
@@ -194,33 +370,89 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
     public int delete(long xid, String indexName, Object indexVal) throws DeadlockException, RemoteException {
         addXid(xid);
 
-        int n = 0;
+        int count = 0;
+        List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
         RMTable<K> table = getXTable(xid, myRMIName.name());
         synchronized (table) {
-            for (K key : table.keySet()) {
-                ResourceItem<K> item = table.get(key);
-                if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal)) {
-                    table.lock(item.getKey(), LockType.WRITE);
-                    item = item.clone();
-                    item.delete();
-                    table.put(item);
-                    n++;
+            for (ResourceItem<K> item : table.lookup(indexName, indexVal)) {
+                K key = item.getKey();
+                if (optimistic) {
+                    table.recordRead(key, item);
                 }
+                lock(xid, table, key, LockType.WRITE, records);
+                item = item.clone();
+                item.delete();
+                table.put(item);
+                records.add(RedoLog.Record.delete(xid, table.getTableName(), key));
+                count++;
             }
-            if (n > 0) {
-                if (!storeTable(xid, myRMIName.name(), table)) {
-                    throw new RemoteException("System Error: Can't write table to disk!");
-                }
+            writeLog(records);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean decreaseAvail(long xid, K key, int amount) throws DeadlockException, RemoteException {
+        if (amount <= 0) {
+            return false;
+        }
+        addXid(xid);
+
+        boolean result = false;
+        RMTable<K> table = getXTable(xid, myRMIName.name());
+        List<RedoLog.Record<K>> records = new ArrayList<RedoLog.Record<K>>();
+        lock(xid, table, key, LockType.ESCROW, records);
+        ResourceItem<K> item = table.table().get(key);
+        if (item == null) {
+            if (table.escrow(key, amount)) {
+                records.add(RedoLog.Record.escrow(xid, table.getTableName(), key, amount));
+                result = true;
             }
+        } else if (!item.isDeleted() && item instanceof Reservable && ((Reservable) item).numAvail() >= amount) {
+            // the item changed by the transaction itself is locked in WRITE, so it is decreased in place
+            item = item.clone();
+            ((Reservable) item).decreaseAvail(amount);
+            table.put(item);
+            records.add(RedoLog.Record.put(xid, table.getTableName(), item));
+            result = true;
         }
-        return n;
+        writeLog(records);
+        return result;
     }
 
-    private void recover() {
-        HashSet<Long> tXids = loadTransactionLogs();
-        if (tXids != null) {
-            xids = tXids;
+    /**
+     * read an item, which is recorded for the validation under optimistic concurrency control
+     */
+    private ResourceItem<K> read(RMTable<K> table, K key) {
+        return optimistic ? table.read(key) : table.get(key);
+    }
+
+    /**
+     * lock a row of the table unless optimistic, and collect the LOCK records of the READ and escalated locks
+     */
+    private void lock(long xid, RMTable<K> table, K key, LockType lockType, List<RedoLog.Record<K>> records)
+            throws DeadlockException {
+        if (optimistic || table.isTableLocked(lockType)) {
+            return;
+        }
+        awaitRestored(xid, table.getTableName(), key);
+        LockType escalated = table.lock(key, lockType);
+        if (logReadLocks && lockType == LockType.READ) {
+            records.add(RedoLog.Record.lock(xid, table.getTableName(), key, lockType));
         }
+        if (logReadLocks && escalated != null) {
+            records.add(RedoLog.Record.<K>lock(xid, table.getTableName(), null, escalated));
+        }
+    }
+
+    /**
+     * restore the main tables and the workspaces from disk,
+     * which returns before the rows of the workspaces are relocked, see <code>awaitRestored()</code>,
+     * but only once the whole redo log is replayed, as the keys in doubt are known only then,
+     * so the replay still delays binding the RM
+     */
+    void recover() {
+        xids = loadTransactionLogs();
 
         File dataDir = new File(myRMIName.name());
         if (!dataDir.exists()) {
@@ -228,42 +460,377 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         }
         File[] dataFiles = dataDir.listFiles();
 
+        List<String> tableNames = new ArrayList<String>();
         if (dataFiles != null) {
             for (File dataFile : dataFiles) {
-                if (dataFile.isDirectory()) {
-                    recoverXTableDir(dataFile);
-                } else if (!dataFile.getName().equals(TRANSACTION_LOG_FILENAME)) {
-                    //recover main table
-                    getMainTable(dataFile.getName());
+                String fileName = dataFile.getName();
+                if (dataFile.isFile() &&
+                        !fileName.equals(TRANSACTION_LOG_FILENAME) &&
+                        !fileName.equals(RedoLog.FILE_NAME) &&
+                        !fileName.endsWith(IOUtil.TEMP_SUFFIX) &&
+                        !fileName.endsWith(MappedStore.JOURNAL_SUFFIX) &&
+                        !PartitionedStore.isDataFile(fileName)) {
+                    String tableName = stripSuffix(stripSuffix(fileName, MappedStore.SUFFIX), PartitionedStore.INDEX_SUFFIX);
+                    if (!tableNames.contains(tableName)) {
+                        tableNames.add(tableName);
+                    }
                 }
             }
         }
+        //recover main tables
+        loadMainTables(tableNames);
+
+        redoLog = new RedoLog<K>(newLog(new File(myRMIName.name(), RedoLog.FILE_NAME)));
+        try {
+            replay(redoLog.open(recoveryPool));
+        } catch (IOException e) {
+            throw new RuntimeException("RM Recover Error: can't open redo log", e);
+        }
+        checkpoint();
     }
 
-    private void recoverXTableDir(File xTableDir) {
-        long xid = Long.parseLong(xTableDir.getName());
-        if (!xids.contains(xid)) {
-            throw new IllegalStateException("RM Recover Error: unexpected xid " + xid);
+    private static String stripSuffix(String fileName, String suffix) {
+        return fileName.endsWith(suffix) ? fileName.substring(0, fileName.length() - suffix.length()) : fileName;
+    }
+
+    /**
+     * load the main tables in parallel on the recovery pool
+     */
+    private void loadMainTables(List<String> tableNames) {
+        List<ForkJoinTask<RMTable<K>>> tasks = new ArrayList<ForkJoinTask<RMTable<K>>>();
+        for (final String tableName : tableNames) {
+            tasks.add(recoveryPool.submit(new Callable<RMTable<K>>() {
+                @Override
+                public RMTable<K> call() {
+                    return loadTable(tableName);
+                }
+            }));
         }
-        File[] xDataFiles = xTableDir.listFiles();
-        if (xDataFiles != null) {
-            for (File xData : xDataFiles) {
-                RMTable xTable = getXTable(xid, xData.getName());
+        Hashtable<String, RMTable<K>> mainTables = new Hashtable<String, RMTable<K>>();
+        for (int i = 0; i < tableNames.size(); i++) {
+            RMTable<K> table = tasks.get(i).join();
+            if (table != null) {
+                mainTables.put(tableNames.get(i), table);
+            }
+        }
+        tables.put(-1L, mainTables);
+    }
+
+    /**
+     * redo the records in the log on top of the checkpointed main tables,
+     * rebuilding the workspaces of the transactions not finished, whose rows are relocked by <code>relockRows()</code>,
+     * while every unprepared one, writers included, is aborted if the reads are not logged
+     */
+    private void replay(List<RedoLog.Record<K>> records) {
+        Set<Long> prepared = new HashSet<Long>();
+        recoveryAborted.clear();
+        for (RedoLog.Record<K> record : records) {
+            long xid = record.xid();
+            switch (record.type()) {
+                case LOCK:
+                    if (record.key() == null) {
+                        getXTable(xid, record.table()).restoreTableLock(record.lockType());
+                    } else {
+                        getXTable(xid, record.table()).restoreLock(record.key(), record.lockType());
+                    }
+                    break;
+                case PUT:
+                    getXTable(xid, record.table()).put(record.item());
+                    getXTable(xid, record.table()).restoreLock(record.key(), LockType.WRITE);
+                    break;
+                case ESCROW:
+                    getXTable(xid, record.table()).restoreEscrow(record.key(), record.amount());
+                    getXTable(xid, record.table()).restoreLock(record.key(), LockType.ESCROW);
+                    break;
+                case DELETE:
+                    RMTable<K> table = getXTable(xid, record.table());
+                    ResourceItem<K> item = table.get(record.key());
+                    if (item != null) {
+                        item = item.clone();
+                        item.delete();
+                        table.put(item);
+                    }
+                    table.restoreLock(record.key(), LockType.WRITE);
+                    break;
+                case PREPARE:
+                    prepared.add(xid);
+                    break;
+                case COMMIT:
+                case ABORT:
+                    Hashtable<String, RMTable<K>> xidTables = tables.remove(xid);
+                    if (xidTables != null && record.type() == RedoLog.Type.COMMIT) {
+                        commitXTables(xidTables.values());
+                    } else if (xidTables != null) {
+                        abortXTables(xidTables.values());
+                    }
+                    if (xids.remove(xid)) {
+                        storeTransactionLog(false, xid);
+                    }
+                    break;
+            }
+        }
+
+        // the reads of an optimistic transaction are never logged, just like READ locks, and whether a transaction
+        // has read is not logged either, so a transaction which only wrote is aborted as well
+        if (!logReadLocks || optimistic) {
+            Set<Long> active = new HashSet<Long>(xids);
+            active.addAll(tables.keySet());
+            active.remove(-1L);
+            for (Long xid : active) {
+                if (!prepared.contains(xid)) {
+                    Log.i("%s aborts unprepared xid %d on recovery", myRMIName, xid);
+                    redoLog.append(Collections.singletonList(RedoLog.Record.<K>end(RedoLog.Type.ABORT, xid)));
+                    Hashtable<String, RMTable<K>> xidTables = tables.remove(xid);
+                    if (xidTables != null) {
+                        abortXTables(xidTables.values());
+                    }
+                    if (xids.remove(xid)) {
+                        storeTransactionLog(false, xid);
+                    }
+                    recoveryAborted.add(xid);
+                }
+            }
+        }
+
+        for (Long xid : xids) {
+            if (!tables.containsKey(xid)) {
+                // no record is logged for the transaction, e.g. it only reads snapshots, so it ends with nothing to redo
+                tables.put(xid, new Hashtable<String, RMTable<K>>());
+            }
+        }
+        List<RMTable<K>> xTables = new ArrayList<RMTable<K>>();
+        for (Long xid : tables.keySet()) {
+            if (xid == -1) {
+                continue;
+            }
+            if (xids.add(xid)) {
+                // the xid is enlisted concurrently and its record is lost
+                Log.e("%s recovers xid %d missing in %s", myRMIName, xid, TRANSACTION_LOG_FILENAME);
+                storeTransactionLog(true, xid);
+            }
+            if (optimistic) {
+                // a prepared transaction has been validated
+                synchronized (validated) {
+                    validated.put(xid, tables.get(xid).values());
+                }
+                continue;
+            }
+            restoringXids.add(xid);
+            for (RMTable<K> xTable : tables.get(xid).values()) {
                 try {
-                    xTable.relockAll();
+                    xTable.relockTable();
                 } catch (DeadlockException e) {
                     throw new RuntimeException(e);
                 }
+                Set<K> keys = inDoubtKeys.get(xTable.getTableName());
+                if (keys == null) {
+                    keys = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+                    inDoubtKeys.put(xTable.getTableName(), keys);
+                }
+                keys.addAll(xTable.lockedKeys());
+                xTables.add(xTable);
+            }
+        }
+        relockRows(xTables);
+    }
+
+    /**
+     * relock the rows of the recovered workspaces in parallel, keeping them in doubt until they end if it fails
+     */
+    private void relockRows(final List<RMTable<K>> xTables) {
+        if (xTables.isEmpty()) {
+            restoringXids.clear();
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        restored = latch;
+        recoveryPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                long begin = System.nanoTime();
+                boolean relocked = false;
+                try {
+                    List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+                    for (final RMTable<K> xTable : xTables) {
+                        tasks.add(ForkJoinTask.adapt(new Callable<Void>() {
+                            @Override
+                            public Void call() throws DeadlockException {
+                                xTable.relockRows();
+                                return null;
+                            }
+                        }));
+                    }
+                    ForkJoinTask.invokeAll(tasks);
+                    relocked = true;
+                    Log.i("%s relocked %d workspaces in %dms", myRMIName, xTables.size(),
+                            (System.nanoTime() - begin) / 1000000);
+                } catch (RuntimeException e) {
+                    Log.e("%s relock error: %s, keep the rows in doubt until %s end", myRMIName, e, restoringXids);
+                } finally {
+                    if (relocked) {
+                        restoringXids.clear();
+                        inDoubtKeys.clear();
+                    } else {
+                        released = new CountDownLatch(1);
+                        unrelockedXids.addAll(restoringXids);
+                        restoringXids.clear();
+                    }
+                    latch.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * release the rows in doubt once all the transactions failing to relock them have ended
+     *
+     * @param xid which has ended
+     */
+    private void releaseUnrelocked(long xid) {
+        unrelockedXids.remove(xid);
+        synchronized (unrelockedXids) {
+            if (unrelockedXids.isEmpty() && released.getCount() > 0) {
+                inDoubtKeys.clear();
+                released.countDown();
             }
         }
     }
 
-    private RMTable<K> loadTable(long xid, String tableName) {
-        return IOUtil.readObject(myRMIName.name() + File.separator + (xid == -1 ? "" : xid + File.separator) + tableName);
+    /**
+     * wait for the recovered workspaces to be relocked, if the transaction is one of them,
+     * or the key is locked by one of them, i.e. in doubt, and for the unrelocked ones to end
+     */
+    private void awaitRestored(long xid, String tableName, K key) {
+        if (restored.getCount() == 0 && released.getCount() == 0) {
+            return;
+        }
+        try {
+            if (restoringXids.contains(xid) || isInDoubt(tableName, key)) {
+                restored.await();
+            }
+            if (isInDoubt(tableName, key)) {
+                released.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isInDoubt(String tableName, K key) {
+        Set<K> keys = key == null ? null : inDoubtKeys.get(tableName);
+        return keys != null && keys.contains(key);
+    }
+
+    /**
+     * wait for all the recovered workspaces to be relocked
+     */
+    void awaitRestored() throws InterruptedException {
+        restored.await();
     }
 
-    private boolean storeTable(long xid, String tableName, RMTable table) {
-        return IOUtil.writeObject(myRMIName.name() + File.separator + xid, tableName, table);
+    /**
+     * dump all main tables to disk and drop the log records of finished transactions
+     */
+    private void checkpoint() {
+        checkpointLock.writeLock().lock();
+        try {
+            Hashtable<String, RMTable<K>> mainTables = tables.get(-1L);
+            if (mainTables != null) {
+                for (RMTable<K> table : mainTables.values()) {
+                    if (!checkpoint(table)) {
+                        Log.e("%s checkpoint error: can't write table %s", myRMIName, table.getTableName());
+                        return;
+                    }
+                }
+            }
+            if (redoLog.compact() && compactTransactionLogs()) {
+                commitCount.set(0);
+            }
+            if (storage != Storage.SERIALIZED) {
+                bufferPool.shrink();
+                Log.i("%s %s", myRMIName, bufferPool);
+            }
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * apply the keys of a main table committed since the last checkpoint to its storage engine
+     */
+    private boolean checkpoint(RMTable<K> table) {
+        Set<K> keys = table.dirtyKeys();
+        if (!engines.get(table.getTableName()).checkpoint(table.table(), keys)) {
+            return false;
+        }
+        table.clean(keys);
+        if (storage != Storage.SERIALIZED) {
+            // the serialized table migrated to the engine, if any
+            new File(myRMIName.name(), table.getTableName()).delete();
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of <code>rm.[RMName].[name]</code>, or <code>rm.[name]</code> for all RMs
+     */
+    private String getRMProperty(String name, String defaultValue) {
+        return getProperty(myRMIName.property(name), getProperty("rm." + name, defaultValue));
+    }
+
+    private LockManager newLockManager() {
+        DeadlockPolicy deadlockPolicy = DeadlockPolicy.valueOf(getRMProperty("deadlockPolicy", "DETECT").toUpperCase());
+        VictimPolicy victimPolicy = VictimPolicy.valueOf(getRMProperty("deadlockVictim", "YOUNGEST").toUpperCase());
+        long deadlockTimeout = Long.parseLong(getRMProperty("deadlockTimeout", String.valueOf(LockManager.DEADLOCK_TIMEOUT)));
+        return new LockManager(deadlockPolicy, victimPolicy, deadlockTimeout);
+    }
+
+    /**
+     * load a main table by its storage engine, migrating the serialized table if the engine holds none yet
+     */
+    private RMTable<K> loadTable(String tableName) {
+        RMTable<K> table = new RMTable<K>(tableName, null, -1, lm, lockEscalationThreshold);
+        table.trackDirtyKeys();
+        StorageEngine<K> engine = newStorageEngine(tableName);
+        boolean stored;
+        try {
+            stored = engine.recover(table);
+        } catch (IOException e) {
+            throw new RuntimeException("RM Recover Error: can't load table " + tableName, e);
+        }
+        engines.put(tableName, engine);
+        if (!stored && storage != Storage.SERIALIZED) {
+            List<ResourceItem<K>> serialized = SerializedStore.read(new File(myRMIName.name(), tableName));
+            if (serialized != null) {
+                // written to the engine on the next checkpoint
+                for (ResourceItem<K> item : serialized) {
+                    table.commit(item, 0, false);
+                }
+            }
+        }
+        return table;
+    }
+
+    private StorageEngine<K> newStorageEngine(String tableName) {
+        File dir = new File(myRMIName.name());
+        switch (storage) {
+            case MAPPED:
+                return new MappedStore<K>(dir, tableName, itemClass, recoveryPool, partitions, bufferPool);
+            case LAZY:
+                return new PartitionedStore<K>(dir, tableName, partitions, bufferPool);
+            default:
+                return new SerializedStore<K>(dir, tableName);
+        }
+    }
+
+    private void writeLog(RedoLog.Record<K> record) throws RemoteException {
+        writeLog(Collections.singletonList(record));
+    }
+
+    private void writeLog(List<RedoLog.Record<K>> records) throws RemoteException {
+        if (!records.isEmpty() && !redoLog.append(records)) {
+            throw new RemoteException("System Error: Can't write log to disk!");
+        }
     }
 
     private RMTable<K> getXTable(long xid, String tableName) {
@@ -280,15 +847,8 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
             if (table != null) {
                 return table;
             }
-            table = loadTable(xid, tableName);
-            if (table == null) {
-                table = new RMTable<K>(tableName, xid == -1 ? null : getMainTable(tableName), xid, lm);
-            } else {
-                if (xid != -1) {
-                    table.setLockManager(lm);
-                    table.setParent(getMainTable(tableName));
-                }
-            }
+            table = xid == -1 ? loadTable(tableName) :
+                    new RMTable<K>(tableName, getMainTable(tableName), xid, lm, lockEscalationThreshold);
             xidTables.put(tableName, table);
             return table;
         }
@@ -298,12 +858,69 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         return getXTable(-1, tableName);
     }
 
+    /**
+     * the transaction log is a sequence of records of <code>[enlisted][xid]</code>
+     */
     private HashSet<Long> loadTransactionLogs() {
-        return IOUtil.readObject(myRMIName.name() + File.separator + TRANSACTION_LOG_FILENAME);
+        HashSet<Long> result = new HashSet<Long>();
+        xidLog = newLog(new File(myRMIName.name(), TRANSACTION_LOG_FILENAME));
+        try {
+            for (byte[] record : xidLog.open()) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                boolean enlisted = buffer.get() != 0;
+                long xid = buffer.getLong();
+                if (enlisted) {
+                    result.add(xid);
+                } else {
+                    result.remove(xid);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("RM Recover Error: can't open transaction log", e);
+        }
+        return result;
     }
 
-    private boolean storeTransactionLogs(HashSet<Long> xids) {
-        return IOUtil.writeObject(myRMIName.name(), TRANSACTION_LOG_FILENAME, xids);
+    private boolean storeTransactionLog(boolean enlisted, long xid) {
+        try {
+            xidLog.append(transactionLogRecord(enlisted, xid));
+            return true;
+        } catch (IOException e) {
+            Log.e("%s: can't write transaction log %s", myRMIName, e);
+            return false;
+        }
+    }
+
+    private boolean compactTransactionLogs() {
+        try {
+            xidLog.compact(new GroupCommitLog.Compactor() {
+                @Override
+                public List<byte[]> compact(List<byte[]> records) {
+                    Set<Long> enlisted = new LinkedHashSet<Long>();
+                    for (byte[] record : records) {
+                        ByteBuffer buffer = ByteBuffer.wrap(record);
+                        if (buffer.get() != 0) {
+                            enlisted.add(buffer.getLong());
+                        } else {
+                            enlisted.remove(buffer.getLong());
+                        }
+                    }
+                    List<byte[]> result = new ArrayList<byte[]>(enlisted.size());
+                    for (Long xid : enlisted) {
+                        result.add(transactionLogRecord(true, xid));
+                    }
+                    return result;
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            Log.e("%s: can't compact transaction log %s", myRMIName, e);
+            return false;
+        }
+    }
+
+    static byte[] transactionLogRecord(boolean enlisted, long xid) {
+        return ByteBuffer.allocate(9).put((byte) (enlisted ? 1 : 0)).putLong(xid).array();
     }
 
 
@@ -312,10 +929,14 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        awaitRestored(xid, null, null);
 
+        boolean enlisted;
         synchronized (xids) {
-            xids.add(xid);
-            storeTransactionLogs(xids);
+            enlisted = xids.add(xid);
+        }
+        if (enlisted && !storeTransactionLog(true, xid)) {
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
         }
 
         try {
@@ -339,10 +960,24 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        awaitRestored(xid, null, null);
         if (!xids.contains(xid)) {
+            if (recoveryAborted.contains(xid)) {
+                Log.i("Vote no for %d aborted on recovery", xid);
+                return false;
+            }
             throw new InvalidTransactionException(xid, "No Such Xid.");
         }
+        if (optimistic && !validate(xid)) {
+            Log.i("Vote no for %d failing validation", xid);
+            return false;
+        }
+        if (!optimistic && !validateEscrows(xid)) {
+            Log.i("Vote no for %d escrowing items not available", xid);
+            return false;
+        }
         Log.i("Prepare for %d", xid);
+        writeLog(RedoLog.Record.<K>end(RedoLog.Type.PREPARE, xid));
         if (dieTime == DieTime.AFTER_PREPARE) {
             dieNow();
         }
@@ -361,6 +996,52 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         end(xid, false);
     }
 
+    /**
+     * backward validation of an optimistic transaction against the commits and the transactions validated
+     *
+     * @return true if the transaction is validated, which is then kept until it ends
+     */
+    private boolean validate(long xid) {
+        Hashtable<String, RMTable<K>> xidTables = tables.get(xid);
+        if (xidTables == null) {
+            return true;
+        }
+        synchronized (validated) {
+            if (validated.containsKey(xid)) {
+                return true;
+            }
+            for (RMTable<K> xTable : xidTables.values()) {
+                if (!xTable.validateReads() || !xTable.validateEscrows()) {
+                    return false;
+                }
+                for (Collection<RMTable<K>> validatedTables : validated.values()) {
+                    for (RMTable<K> validatedTable : validatedTables) {
+                        if (validatedTable.getTableName().equals(xTable.getTableName()) && xTable.conflicts(validatedTable)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            validated.put(xid, xidTables.values());
+            return true;
+        }
+    }
+
+    /**
+     * @return if the main tables still cover the escrows of the transaction, which the ESCROW locks keep under 2PL
+     */
+    private boolean validateEscrows(long xid) {
+        Hashtable<String, RMTable<K>> xidTables = tables.get(xid);
+        if (xidTables != null) {
+            for (RMTable<K> xTable : xidTables.values()) {
+                if (!xTable.validateEscrows()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private void checkDie(DieTime dieTime) throws RemoteException {
         ping();
         if (this.dieTime == dieTime) {
@@ -372,45 +1053,91 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         if (xid < 0) {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        awaitRestored(xid, null, null);
         Hashtable<String, RMTable<K>> xidTables = tables.get(xid);
         if (xidTables == null) {
+            if (!commit && recoveryAborted.remove(xid)) {
+                return;
+            }
             throw new InvalidTransactionException(xid, "No Such Xid.");
         }
-        Log.i((commit ? "Commit for " : "Abort for ") + xid);
-        synchronized (xidTables) {
-            for (String tableName : xidTables.keySet()) {
+        Log.i(commit ? "Commit for %d" : "Abort for %d", xid);
+        checkpointLock.readLock().lock();
+        try {
+            // the commit record must be on disk before the main tables are changed
+            writeLog(RedoLog.Record.<K>end(commit ? RedoLog.Type.COMMIT : RedoLog.Type.ABORT, xid));
+            synchronized (xidTables) {
                 if (commit) {
-                    commitXTable(xidTables.get(tableName));
+                    commitXTables(xidTables.values());
+                } else {
+                    abortXTables(xidTables.values());
                 }
-                new File(myRMIName.name() + File.separator + xid + File.separator + tableName).delete();
+                tables.remove(xid);
             }
-            new File(myRMIName.name() + File.separator + xid).delete();
-            tables.remove(xid);
+        } finally {
+            checkpointLock.readLock().unlock();
         }
         lm.unlockAll(xid);
+        if (!unrelockedXids.isEmpty()) {
+            releaseUnrelocked(xid);
+        }
+        releaseSnapshot(xid);
+        if (optimistic) {
+            // after the changes are applied, which conflict with the transactions validated later otherwise
+            synchronized (validated) {
+                validated.remove(xid);
+            }
+        }
 
+        boolean removed;
         synchronized (xids) {
-            xids.remove(xid);
-            storeTransactionLogs(xids);
+            removed = xids.remove(xid);
+        }
+        if (removed) {
+            storeTransactionLog(false, xid);
+        }
+
+        if (commit && commitCount.incrementAndGet() >= CHECKPOINT_INTERVAL) {
+            checkpoint();
         }
     }
 
-    private void commitXTable(RMTable<K> xTable) throws RemoteException {
-        String tableName = xTable.getTableName();
-        RMTable<K> table = getMainTable(tableName);
-        for (K key : xTable.keySet()) {
-            ResourceItem<K> item = xTable.get(key);
-            if (item.isDeleted()) {
-                table.remove(item);
-            } else {
-                table.put(item);
+    /**
+     * apply the workspaces of a transaction to the main tables with a new commit timestamp, releasing their pins,
+     * which excludes taking a snapshot, so a snapshot covers either all or none of them
+     */
+    private void commitXTables(Collection<RMTable<K>> xTables) {
+        synchronized (snapshots) {
+            long commitTs = ++versionClock;
+            boolean keepVersions = !snapshots.isEmpty();
+            for (RMTable<K> xTable : xTables) {
+                RMTable<K> table = getMainTable(xTable.getTableName());
+                for (ResourceItem<K> item : xTable.table().values()) {
+                    table.commit(item, commitTs, keepVersions);
+                }
+                table.commitEscrows(xTable, commitTs, keepVersions);
+                xTable.unpinAll();
             }
         }
-        if (!IOUtil.writeObject(myRMIName.name(), tableName, table)) {
-            throw new RemoteException("Can't write table to disk");
+    }
+
+    /**
+     * release the escrows and the partitions pinned by the workspaces of an aborted transaction
+     */
+    private void abortXTables(Collection<RMTable<K>> xTables) {
+        for (RMTable<K> xTable : xTables) {
+            getMainTable(xTable.getTableName()).abortEscrows(xTable);
+            xTable.unpinAll();
         }
     }
 
+    /**
+     * storage engines of the main tables
+     */
+    private enum Storage {
+        SERIALIZED, MAPPED, LAZY
+    }
+
     /**
      * The Daemon Thread to check if TM is alive
      * by invoke <code>TM.ping()</code> in a way of round-robin
@@ -455,9 +1182,9 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
         void reconnect() {
             try {
                 tm = (TransactionManager) lookUp(HostName.TM);
-                Log.i(myRMIName + "'s xids is Empty ? " + xids.isEmpty());
+                Log.i("%s's xids is Empty ? %s", myRMIName, xids.isEmpty());
                 for (Long xid : xids) {
-                    Log.i(myRMIName + " Re-enlist to TM with xid " + xid);
+                    Log.i("%s Re-enlist to TM with xid %d", myRMIName, xid);
                     try {
                         tm.enlist(xid, ResourceManagerImpl.this);
                     } catch (InvalidTransactionException e) {
@@ -467,10 +1194,10 @@ public class ResourceManagerImpl<K> extends Host implements ResourceManager<K> {
                 if (dieTime == DieTime.AFTER_ENLIST) {
                     dieNow();
                 }
-                Log.i(myRMIName + " bound to TM");
+                Log.i("%s bound to TM", myRMIName);
                 tmFailed = false;
             } catch (Exception e) {
-                Log.e(myRMIName + " enlist error:" + e);
+                Log.e("%s enlist error:%s", myRMIName, e);
                 tmFailed = true;
             }
         }
@@ -0,0 +1,64 @@
+package transaction.host.rm;
+
+import transaction.bean.Codecs;
+import transaction.bean.ResourceItem;
+import util.IOUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory storage of a main table, encoded as a whole by <code>Codecs</code> on checkpoint.
+ */
+public class SerializedStore<K> implements StorageEngine<K> {
+    private final File file;
+
+    public SerializedStore(File dir, String tableName) {
+        this.file = new File(dir, tableName);
+    }
+
+    /**
+     * @return the items of the table in the file, or null if none
+     */
+    public static <K> List<ResourceItem<K>> read(File file) {
+        byte[] data = IOUtil.readBytes(file.getPath());
+        if (data == null) {
+            return null;
+        }
+        List<ResourceItem<K>> items = Codecs.listFromBytes(data);
+        if (items == null) {
+            RMTable<K> table = IOUtil.readObject(file.getPath());
+            if (table != null) {
+                items = new ArrayList<ResourceItem<K>>(table.table().values());
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public boolean recover(RMTable<K> table) {
+        List<ResourceItem<K>> items = read(file);
+        if (items == null) {
+            return false;
+        }
+        for (ResourceItem<K> item : items) {
+            table.put(item);
+        }
+        return true;
+    }
+
+    /**
+     * write the whole table, whichever keys are committed
+     */
+    @Override
+    public boolean checkpoint(Map<K, ResourceItem<K>> table, Collection<K> keys) {
+        return IOUtil.writeBytes(file.getPath(), Codecs.listToBytes(table.values()));
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,31 @@
+package transaction.host.rm;
+
+import transaction.bean.ResourceItem;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Storage engine of a main table of a RM, picked per RM by <code>rm.[RMName].storage</code>.
+ */
+public interface StorageEngine<K> {
+    /**
+     * open the storage, completing an interrupted checkpoint if any, and then either load all the items into the table,
+     * or set a <code>PartitionedEngine</code> as the source of the table
+     *
+     * @param table the main table, which is empty
+     * @return false if the storage holds no table yet
+     */
+    boolean recover(RMTable<K> table) throws IOException;
+
+    /**
+     * apply the batch of the items committed since the last checkpoint, which are read from the table by their keys,
+     * where a key absent from the table is removed
+     *
+     * @return true if written and synced successfully
+     */
+    boolean checkpoint(Map<K, ResourceItem<K>> table, Collection<K> keys);
+
+    void close();
+}
@@ -8,12 +8,14 @@ import transaction.exception.IllegalTransactionStateException;
 import transaction.exception.InvalidTransactionException;
 import transaction.exception.TransactionAbortedException;
 import transaction.exception.TransactionManagerUnaccessibleException;
-import util.IOUtil;
+import util.GroupCommitLog;
 import util.Log;
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -28,14 +30,30 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class TransactionManagerImpl extends Host implements TransactionManager {
 
     public static final String TM_LOG_FILE_NAME = "tm.log";
+    private final static int COMPACT_INTERVAL = 100;
+    /**
+     * keep the last record of each xid, which tells its current state
+     */
+    private static final GroupCommitLog.Compactor LAST_RECORDS = new GroupCommitLog.Compactor() {
+        @Override
+        public List<byte[]> compact(List<byte[]> records) {
+            Map<Long, byte[]> last = new LinkedHashMap<Long, byte[]>();
+            for (byte[] record : records) {
+                last.put(ByteBuffer.wrap(record).getLong(), record);
+            }
+            return new ArrayList<byte[]>(last.values());
+        }
+    };
     private ConcurrentHashMap<Long, Queue<ResourceManager>> xidRMMap;
     private ConcurrentHashMap<Long, StateCounter> xidStateMap;
-    private ReentrantReadWriteLock logLock, recoverLock;
+    private ReentrantReadWriteLock recoverLock;
+    private GroupCommitLog log;
+    private AtomicInteger finishCount;
 
     protected TransactionManagerImpl() throws RemoteException {
         super(HostName.TM);
-        logLock = new ReentrantReadWriteLock();
         recoverLock = new ReentrantReadWriteLock();
+        finishCount = new AtomicInteger();
     }
 
     public static void main(String args[]) {
@@ -54,9 +72,6 @@ public class TransactionManagerImpl extends Host implements TransactionManager {
     private void recover() {
         recoverLock.writeLock().lock();
         xidStateMap = loadLog();
-        if (xidStateMap == null) {
-            xidStateMap = new ConcurrentHashMap<Long, StateCounter>();
-        }
         xidRMMap = new ConcurrentHashMap<Long, Queue<ResourceManager>>();
         for (Long xid : xidStateMap.keySet()) {
             xidRMMap.put(xid, new ConcurrentLinkedQueue<ResourceManager>());
@@ -65,17 +80,65 @@ public class TransactionManagerImpl extends Host implements TransactionManager {
         recoverLock.writeLock().unlock();
     }
 
+    /**
+     * the TM log is a sequence of records of <code>[xid][state][count][expect]</code>,
+     * the last record of each xid tells its current state
+     */
     private ConcurrentHashMap<Long, StateCounter> loadLog() {
-        logLock.readLock().lock();
-        ConcurrentHashMap<Long, StateCounter> result = IOUtil.readObject(TM_LOG_FILE_NAME);
-        logLock.readLock().unlock();
+        ConcurrentHashMap<Long, StateCounter> result = new ConcurrentHashMap<Long, StateCounter>();
+        if (log != null) {
+            log.close();
+        }
+        log = newLog(new File(TM_LOG_FILE_NAME));
+        try {
+            for (byte[] record : log.open()) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                long xid = buffer.getLong();
+                State state = State.values()[buffer.get()];
+                int count = buffer.getInt();
+                int expect = buffer.getInt();
+
+                StateCounter counter = result.get(xid);
+                if (counter == null) {
+                    counter = new StateCounter(xid);
+                    result.put(xid, counter);
+                }
+                // increments of the same state may be logged out of order
+                if (counter.state != state || counter.count.get() < count) {
+                    counter.count.set(count);
+                }
+                counter.state = state;
+                counter.expect = expect;
+            }
+            log.compact(LAST_RECORDS);
+            finishCount.set(0);
+        } catch (IOException e) {
+            throw new RuntimeException("TM Recover Error: can't open " + TM_LOG_FILE_NAME, e);
+        }
         return result;
     }
 
-    private void storeLog() {
-        logLock.writeLock().lock();
-        IOUtil.writeObject(TM_LOG_FILE_NAME, xidStateMap);
-        logLock.writeLock().unlock();
+    private void storeLog(long xid, State state, int count, int expect) {
+        try {
+            log.append(ByteBuffer.allocate(17).putLong(xid).put((byte) state.ordinal()).putInt(count).putInt(expect).array());
+        } catch (IOException e) {
+            Log.e("TM can't write log:%s", e);
+        }
+    }
+
+    /**
+     * compact the log every <code>COMPACT_INTERVAL</code> transactions finished
+     */
+    private void finished() {
+        if (finishCount.incrementAndGet() < COMPACT_INTERVAL) {
+            return;
+        }
+        finishCount.set(0);
+        try {
+            log.compact(LAST_RECORDS);
+        } catch (IOException e) {
+            Log.e("TM can't compact log:%s", e);
+        }
     }
 
     @Override
@@ -105,9 +168,9 @@ public class TransactionManagerImpl extends Host implements TransactionManager {
             return false;
         }
         xidRMMap.put(xid, new ConcurrentLinkedQueue<ResourceManager>());
-        xidStateMap.put(xid, new StateCounter());
+        xidStateMap.put(xid, new StateCounter(xid));
         recoverLock.writeLock().unlock();
-        Log.i("Start:%s", xidStateMap);
+        Log.d("Start:%s", xidStateMap);
         return true;
     }
 
@@ -252,6 +315,7 @@ public class TransactionManagerImpl extends Host implements TransactionManager {
 
             if (state.increaseAndCheck()) {
                 state.state(State.Finish, 0);
+                finished();
                 return true;
             }
         } catch (Exception e) {
@@ -260,20 +324,22 @@ public class TransactionManagerImpl extends Host implements TransactionManager {
         return false;
     }
 
-    private class StateCounter implements Serializable {
+    private class StateCounter {
+        final long xid;
         State state;
         AtomicInteger count;
         int expect;
 
-        StateCounter() {
+        StateCounter(long xid) {
+            this.xid = xid;
             state = State.Start;
             count = new AtomicInteger(0);
         }
 
         boolean increaseAndCheck() {
-            boolean result = count.incrementAndGet() >= expect;
-            storeLog();
-            return result;
+            int current = count.incrementAndGet();
+            storeLog(xid, state, current, expect);
+            return current >= expect;
         }
 
         void updatePrepare() {
@@ -287,7 +353,7 @@ public class TransactionManagerImpl extends Host implements TransactionManager {
             this.expect = expect;
             this.state = state;
             count.set(0);
-            storeLog();
+            storeLog(xid, state, 0, expect);
         }
 
         @Override
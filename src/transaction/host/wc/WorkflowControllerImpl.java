@@ -9,6 +9,7 @@ import transaction.exception.UnaccessibleException;
 import util.Log;
 
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
@@ -25,11 +26,13 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
 
     private AtomicLong xidCounter;
     private Hashtable<HostName, Remote> hostMap;
+    private boolean snapshotQueries;
 
     public WorkflowControllerImpl() throws RemoteException {
         super(HostName.WC);
         xidCounter = new AtomicLong(System.currentTimeMillis());
         hostMap = new Hashtable<HostName, Remote>();
+        snapshotQueries = Boolean.parseBoolean(getProperty("wc.snapshotQueries", "false"));
     }
 
     public static void main(String args[]) {
@@ -62,10 +65,10 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
 
         try {
             hostMap.put(who, (Remote) lookUp(who));
-            Log.i("WC bound to " + who.name());
+            Log.i("WC bound to %s", who.name());
             return true;
         } catch (Exception e) {
-            Log.e("WC cannot bind to " + who.name());
+            Log.e("WC cannot bind to %s", who.name());
             e.printStackTrace();
             return false;
         }
@@ -300,6 +303,42 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
         return car == null ? -1 : car.price();
     }
 
+    @Override
+    public List<String> queryFlightsInRange(long xid, int minPrice, int maxPrice, int minAvail) throws RemoteException {
+        return range(xid, minPrice, maxPrice, minAvail, HostName.RMFlights);
+    }
+
+    @Override
+    public List<String> queryRoomsInRange(long xid, int minPrice, int maxPrice, int minAvail) throws RemoteException {
+        return range(xid, minPrice, maxPrice, minAvail, HostName.RMRooms);
+    }
+
+    @Override
+    public List<String> queryCarsInRange(long xid, int minPrice, int maxPrice, int minAvail) throws RemoteException {
+        return range(xid, minPrice, maxPrice, minAvail, HostName.RMCars);
+    }
+
+    /**
+     * Base Range Query Method, which looks the price up in the ordered index of the RM and filters the availability
+     *
+     * @return the keys of the items in the ranges
+     */
+    private List<String> range(long xid, int minPrice, int maxPrice, int minAvail, HostName who) throws RemoteException {
+        ResourceManager<String> rm = rm(who);
+        Range[] ranges = {new Range("price", minPrice, maxPrice), Range.atLeast("numAvail", minAvail)};
+        try {
+            List<ResourceItem<String>> items = snapshotQueries ?
+                    rm.queryRangeSnapshot(xid, ranges) : rm.queryRange(xid, ranges);
+            List<String> result = new ArrayList<String>();
+            for (ResourceItem<String> item : items) {
+                result.add(item.getKey());
+            }
+            return result;
+        } catch (DeadlockException e) {
+            throw new RemoteException(String.format("Deadlock detected for %d:%s", xid, e));
+        }
+    }
+
     /**
      * Base Query Method
      *
@@ -316,9 +355,9 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
         if (key == null) {
             return null;
         }
-        ResourceManager rm = rm(who);
+        ResourceManager<String> rm = rm(who);
         try {
-            return clazz.cast(rm.query(xid, key));
+            return clazz.cast(query(rm, xid, key));
         } catch (DeadlockException e) {
             throw new RemoteException(String.format("Deadlock detected for %d:%s", xid, e));
         }
@@ -329,16 +368,18 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
         if (custName == null) {
             return -1;
         }
-        ResourceManager reservationRM = rm(HostName.RMReservations);
-        ResourceManager carRM = rm(HostName.RMCars);
-        ResourceManager hotelRM = rm(HostName.RMRooms);
-        ResourceManager flightRM = rm(HostName.RMFlights);
-        ResourceManager customerRM = rm(HostName.RMCustomers);
+        ResourceManager<ReservationKey> reservationRM = rm(HostName.RMReservations);
+        ResourceManager<String> carRM = rm(HostName.RMCars);
+        ResourceManager<String> hotelRM = rm(HostName.RMRooms);
+        ResourceManager<String> flightRM = rm(HostName.RMFlights);
+        ResourceManager<String> customerRM = rm(HostName.RMCustomers);
         try {
-            if (customerRM.query(xid, custName) == null) {
+            if (query(customerRM, xid, custName) == null) {
                 return -1;
             }
-            List<ResourceItem<ReservationKey>> reservations = reservationRM.query(xid, "custName", custName);
+            List<ResourceItem<ReservationKey>> reservations = snapshotQueries ?
+                    reservationRM.querySnapshot(xid, "custName", custName) :
+                    reservationRM.query(xid, "custName", custName);
             if (reservations == null) {
                 return -1;
             }
@@ -347,15 +388,15 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
                 ReservationKey key = reservation.getKey();
                 switch (key.resvType()) {
                     case FLIGHT:
-                        Flight flight = (Flight) flightRM.query(xid, key.resvKey());
+                        Flight flight = (Flight) query(flightRM, xid, key.resvKey());
                         result += flight.price();
                         break;
                     case CAR:
-                        Car car = (Car) carRM.query(xid, key.resvKey());
+                        Car car = (Car) query(carRM, xid, key.resvKey());
                         result += car.price();
                         break;
                     case HOTEL:
-                        Hotel hotel = (Hotel) hotelRM.query(xid, key.resvKey());
+                        Hotel hotel = (Hotel) query(hotelRM, xid, key.resvKey());
                         result += hotel.price();
                         break;
                 }
@@ -366,62 +407,66 @@ public class WorkflowControllerImpl extends Host implements WorkflowController {
         }
     }
 
+    /**
+     * query for the client, which reads the snapshot of the transaction in the RM without locking
+     * if <code>wc.snapshotQueries</code>, or takes a READ lock otherwise
+     */
+    private <K> ResourceItem<K> query(ResourceManager<K> rm, long xid, K key) throws DeadlockException, RemoteException {
+        return snapshotQueries ? rm.querySnapshot(xid, key) : rm.query(xid, key);
+    }
+
     /*
      * Interfaces of Reservation
      */
     @Override
     public boolean reserveFlight(long xid, String custName, String flightNum) throws RemoteException, TransactionAbortedException {
-        return reserve(xid, custName, flightNum, Flight.class, ReservationType.FLIGHT, HostName.RMFlights);
+        return reserve(xid, custName, flightNum, ReservationType.FLIGHT, HostName.RMFlights);
     }
 
     @Override
     public boolean reserveCar(long xid, String custName, String location) throws RemoteException, TransactionAbortedException {
-        return reserve(xid, custName, location, Car.class, ReservationType.CAR, HostName.RMCars);
+        return reserve(xid, custName, location, ReservationType.CAR, HostName.RMCars);
     }
 
     @Override
     public boolean reserveRoom(long xid, String custName, String location) throws RemoteException, TransactionAbortedException {
-        return reserve(xid, custName, location, Hotel.class, ReservationType.HOTEL, HostName.RMRooms);
+        return reserve(xid, custName, location, ReservationType.HOTEL, HostName.RMRooms);
     }
 
     /**
      * Base Reserve Method
-     * use java reflection to decrease the remaining number of an ResourceItem
+     * insert the reservation, and then decrease the remaining number of an ResourceItem by escrow,
+     * so that the reservations of the same item do not block each other
      *
      * @param xid      transaction id
      * @param custName customer Name
      * @param key      key of ResourceItem to reserve
-     * @param clazz    class of ResourceItem to reserve
      * @param type     Reservation Type
      * @param who      to which RM
-     * @param <T>      type of  ResourceItem to reserve
      * @return true if add successfully
      * @throws RemoteException             on communications failure.
      * @throws TransactionAbortedException if transaction was aborted.
      * @throws InvalidTransactionException if transaction id is invalid.
      */
-    private <T extends ResourceItem<String>> boolean reserve(long xid, String custName, String key, Class<T> clazz, ReservationType type, HostName who) throws RemoteException, TransactionAbortedException {
+    private boolean reserve(long xid, String custName, String key, ReservationType type, HostName who) throws RemoteException, TransactionAbortedException {
         if (custName == null || key == null) {
             return false;
         }
-        ResourceManager rm = rm(who);
-        ResourceManager customerRM = rm(HostName.RMCustomers);
-        ResourceManager reservationRM = rm(HostName.RMReservations);
+        ResourceManager<String> rm = rm(who);
+        ResourceManager<String> customerRM = rm(HostName.RMCustomers);
+        ResourceManager<ReservationKey> reservationRM = rm(HostName.RMReservations);
         try {
-            ResourceItem<String> oldItem = rm.query(xid, key);
-            if (oldItem == null ||
-                    !exist(customerRM, xid, custName) ||
-                    exist(reservationRM, xid, new ReservationKey(custName, type, key)) ||
+            ReservationKey reservationKey = new ReservationKey(custName, type, key);
+            if (!exist(customerRM, xid, custName) || exist(reservationRM, xid, reservationKey) ||
                     !reservationRM.insert(xid, new Reservation(custName, type, key))) {
                 return false;
             }
-            ResourceItem<String> newItem = oldItem.clone();
-            try {
-                clazz.getMethod("decreaseAvail").invoke(newItem);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            if (rm.decreaseAvail(xid, key, 1)) {
+                return true;
             }
-            return rm.update(xid, key, newItem);
+            // no item is consumed without its reservation
+            reservationRM.delete(xid, reservationKey);
+            return false;
         } catch (Exception e) {
             abortForRMException(xid, e);
         }
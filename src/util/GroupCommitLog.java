@@ -0,0 +1,361 @@
+package util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log file of <code>[length][crc32][payload]</code> records,
+ * synced once per batch of <code>batchSize</code> records or <code>maxWait</code> milliseconds.
+ */
+public class GroupCommitLog {
+    private final File file;
+    private final int batchSize;
+    private final long maxWait;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition batchReady = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Lock ioLock = new ReentrantLock();
+
+    private List<byte[]> buffer = new ArrayList<byte[]>();
+    private long appendedSeq, writingSeq, durableSeq;
+    private IOException failure;
+    private boolean closed = true;
+    private int generation;
+
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+
+    public GroupCommitLog(File file, int batchSize, long maxWait) {
+        this.file = file;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWait = Math.max(0, maxWait);
+    }
+
+    /**
+     * open the log for appending and start the flusher thread
+     *
+     * @return all the valid records in the log, in the order they were appended
+     * @throws IOException if the log cannot be read or opened
+     */
+    public List<byte[]> open() throws IOException {
+        lock.lock();
+        try {
+            List<byte[]> records = new ArrayList<byte[]>();
+            long validLength = read(records);
+            if (file.length() > validLength) {
+                Log.e("%s: cut off torn tail at %d", file, validLength);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            openOutput();
+            failure = null;
+            closed = false;
+            new Flusher(++generation).start();
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * flush the buffered records and stop the flusher thread
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            batchReady.signal();
+            while (durableSeq < appendedSeq && failure == null) {
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        ioLock.lock();
+        try {
+            IOUtil.close(out);
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    public void append(byte[] record) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>(1);
+        records.add(record);
+        append(records);
+    }
+
+    /**
+     * append records to the log, and block until they are synced to the disk
+     *
+     * @param records records to append
+     * @throws IOException if the log is closed or the records cannot be written
+     */
+    public void append(List<byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException(file + " is closed");
+            }
+            buffer.addAll(records);
+            appendedSeq += records.size();
+            long seq = appendedSeq;
+            if (buffer.size() >= batchSize || buffer.size() == records.size()) {
+                // the batch is full, or a new batch starts the max wait timer of the flusher
+                batchReady.signal();
+            }
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw failure;
+                }
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * rewrite the log with the records selected by the compactor,
+     * appending is blocked until the log is rewritten
+     *
+     * @param compactor select the records to keep from all the records in the log
+     * @throws IOException if the log cannot be rewritten
+     */
+    public void compact(Compactor compactor) throws IOException {
+        lock.lock();
+        // the batch taken by the flusher is written first, or it would be appended to the log rewritten
+        while (durableSeq < writingSeq && failure == null) {
+            durable.awaitUninterruptibly();
+        }
+        ioLock.lock();
+        try {
+            if (closed) {
+                throw new IOException(file + " is closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            // the buffered records are written next, so that the compactor sees them
+            Batch batch = takeBatch();
+            writeBatch(batch);
+            markDurable(batch.seq);
+
+            List<byte[]> records = new ArrayList<byte[]>();
+            read(records);
+            records = compactor.compact(records);
+
+            File temp = new File(file.getPath() + IOUtil.TEMP_SUFFIX);
+            FileOutputStream tempOut = new FileOutputStream(temp);
+            DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(tempOut));
+            try {
+                for (byte[] record : records) {
+                    write(dataOut, record);
+                }
+                dataOut.flush();
+                tempOut.getFD().sync();
+            } finally {
+                dataOut.close();
+            }
+            IOUtil.close(out);
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            openOutput();
+        } finally {
+            ioLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    private void openOutput() throws FileNotFoundException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * must be invoked with <code>lock</code> held
+     */
+    private Batch takeBatch() {
+        Batch batch = new Batch(buffer, appendedSeq);
+        writingSeq = appendedSeq;
+        buffer = new ArrayList<byte[]>();
+        return batch;
+    }
+
+    /**
+     * must be invoked with <code>ioLock</code> held
+     */
+    private void writeBatch(Batch batch) throws IOException {
+        if (batch.records.isEmpty()) {
+            return;
+        }
+        for (byte[] record : batch.records) {
+            write(out, record);
+        }
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    private void markDurable(long seq) {
+        lock.lock();
+        try {
+            durableSeq = Math.max(durableSeq, seq);
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * @return the length of the valid prefix of the log
+     */
+    private long read(List<byte[]> records) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long validLength = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > file.length() - validLength - 8) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(payload);
+                validLength += 8 + length;
+            }
+        } catch (EOFException ignored) {
+        } finally {
+            in.close();
+        }
+        return validLength;
+    }
+
+    /**
+     * Select the records to keep when a log is compacted
+     */
+    public interface Compactor {
+        List<byte[]> compact(List<byte[]> records) throws IOException;
+    }
+
+    private static class Batch {
+        final List<byte[]> records;
+        final long seq;
+
+        Batch(List<byte[]> records, long seq) {
+            this.records = records;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * The only thread writing and syncing the log file
+     */
+    private class Flusher extends Thread {
+        private final int generation;
+
+        Flusher(int generation) {
+            super("Group Commit Flusher:" + file.getName());
+            this.generation = generation;
+            setDaemon(true);
+        }
+
+        /**
+         * must be invoked with <code>lock</code> held
+         */
+        private boolean stopped() {
+            return closed || generation != GroupCommitLog.this.generation;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                lock.lock();
+                try {
+                    while (buffer.isEmpty() && !stopped()) {
+                        batchReady.awaitUninterruptibly();
+                    }
+                    if (buffer.isEmpty() || generation != GroupCommitLog.this.generation) {
+                        return;
+                    }
+                    // wait for more records to join the batch
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+                    long remaining;
+                    while (buffer.size() < batchSize && !stopped() &&
+                            (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            batchReady.awaitNanos(remaining);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                    batch = takeBatch();
+                } finally {
+                    lock.unlock();
+                }
+
+                IOException error = null;
+                ioLock.lock();
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    Log.e("%s: write error %s", file, e);
+                    error = e;
+                } finally {
+                    ioLock.unlock();
+                }
+
+                lock.lock();
+                try {
+                    if (error == null) {
+                        durableSeq = Math.max(durableSeq, batch.seq);
+                    } else {
+                        failure = error;
+                    }
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package util;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Created by Dawnwords on 2015/12/16.
  */
 public class IOUtil {
+    public static final String TEMP_SUFFIX = ".tmp";
+
     public static boolean writeObject(String parentDir, String fileName, Object data) {
         File parent = new File(parentDir);
         if (!parent.exists() || !parent.isDirectory()) {
@@ -26,12 +30,51 @@ public class IOUtil {
         }
     }
 
+    /**
+     * write data to a temporary file first and then rename it to fileName,
+     * so that a crash in the middle of writing never leaves a broken file behind
+     */
     public static boolean writeObject(String fileName, Object data) {
+        File temp = new File(fileName + TEMP_SUFFIX);
         ObjectOutputStream out = null;
         try {
-            out = new ObjectOutputStream(new FileOutputStream(fileName));
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            out = new ObjectOutputStream(fileOut);
             out.writeObject(data);
             out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            Files.move(temp.toPath(), new File(fileName).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    public static boolean writeBytes(String parentDir, String fileName, byte[] data) {
+        File parent = new File(parentDir);
+        if (!parent.exists() || !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        return writeBytes(parentDir + File.separator + fileName, data);
+    }
+
+    /**
+     * write data to a temporary file first and then rename it to fileName, as <code>writeObject</code> does
+     */
+    public static boolean writeBytes(String fileName, byte[] data) {
+        File temp = new File(fileName + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.getFD().sync();
+            out.close();
+            Files.move(temp.toPath(), new File(fileName).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             return true;
         } catch (Exception e) {
             return false;
@@ -40,7 +83,39 @@ public class IOUtil {
         }
     }
 
-    private static void close(Closeable closeable) {
+    /**
+     * @return the content of the file, or null if it can't be read
+     */
+    public static byte[] readBytes(String fileName) {
+        try {
+            return Files.readAllBytes(new File(fileName).toPath());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static byte[] toBytes(Object data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static <T> T fromBytes(byte[] data) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            @SuppressWarnings("unchecked")
+            T value = (T) in.readObject();
+            return value;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            close(in);
+        }
+    }
+
+    public static void close(Closeable closeable) {
         try {
             if (closeable != null) {
                 closeable.close();
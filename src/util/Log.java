@@ -1,37 +1,329 @@
 package util;
 
+import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
  * Created by Dawnwords on 2015/11/4.
+ * <p/>
+ * Leveled logger writing asynchronously, configured by the system properties <code>log.level</code>,
+ * <code>log.debug</code>, <code>log.file</code>, <code>log.maxFileSize</code>, <code>log.maxFiles</code>
+ * and <code>log.bufferSize</code>. The level is INFO by default, DEBUG with <code>log.debug=true</code>
+ * and WARN with <code>log.debug=false</code>, unless <code>log.level</code> is given.
  */
 public class Log {
 
-    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("HH:mm:ss SSS");
-    private static boolean DEBUG = Boolean.valueOf(System.getProperty("log.debug", "true"));
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("log.level", defaultLevel()).toUpperCase());
+    private static final RingBuffer<Event> BUFFER = new RingBuffer<Event>(Integer.getInteger("log.bufferSize", 8192));
+    private static final Writer WRITER = new Writer();
+
+    static {
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("Log Flusher") {
+            @Override
+            public void run() {
+                WRITER.shutdown();
+            }
+        });
+    }
+
+    private static String defaultLevel() {
+        String debug = System.getProperty("log.debug");
+        if (debug == null) {
+            return "INFO";
+        }
+        return Boolean.valueOf(debug) ? "DEBUG" : "WARN";
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static void d(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message);
+        }
+    }
+
+    public static void d(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, String.format(format, arg));
+        }
+    }
+
+    public static void d(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, String.format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * the message is only built if DEBUG is enabled
+     */
+    public static void d(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get());
+        }
+    }
+
+    public static void d(String format, Object... args) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, String.format(format, args));
+        }
+    }
+
+    public static void i(String message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message);
+        }
+    }
+
+    public static void i(String format, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, String.format(format, arg));
+        }
+    }
+
+    public static void i(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void i(String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, String.format(format, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * the message is only built if INFO is enabled
+     */
+    public static void i(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message.get());
+        }
+    }
 
     public static void i(String format, Object... args) {
-        if (DEBUG) {
-            System.out.println(format(format, args));
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, String.format(format, args));
+        }
+    }
+
+    public static void w(String message) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message);
+        }
+    }
+
+    public static void w(String format, Object arg) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, String.format(format, arg));
+        }
+    }
+
+    public static void w(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, String.format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * the message is only built if WARN is enabled
+     */
+    public static void w(Supplier<String> message) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message.get());
+        }
+    }
+
+    public static void w(String format, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, String.format(format, args));
+        }
+    }
+
+    public static void e(String message) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message);
+        }
+    }
+
+    public static void e(String format, Object arg) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, String.format(format, arg));
+        }
+    }
+
+    public static void e(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, String.format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * the message is only built if ERROR is enabled
+     */
+    public static void e(Supplier<String> message) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message.get());
         }
     }
 
     public static void e(String format, Object... args) {
-        System.err.println(format(format, args));
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, String.format(format, args));
+        }
     }
 
     public static void iln() {
-        if (DEBUG) {
-            System.out.println();
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, null);
         }
     }
 
-    private static String format(String format, Object... args) {
-        Object[] newArgs = new Object[args.length + 2];
-        newArgs[0] = FORMAT.format(new Date());
-        newArgs[1] = Thread.currentThread().getName();
-        System.arraycopy(args, 0, newArgs, 2, args.length);
-        return String.format("[%s - %s]" + format, newArgs);
+    private static void log(Level level, String message) {
+        Event event = new Event(level, System.currentTimeMillis(), Thread.currentThread().getName(), message);
+        while (!BUFFER.offer(event)) {
+            // full, wait for the writer to drain
+            WRITER.wakeUp();
+            Thread.yield();
+        }
+        WRITER.wakeUp();
+    }
+
+    private static class Event {
+        private final Level level;
+        private final long time;
+        private final String thread;
+        private final String message;
+
+        Event(Level level, long time, String thread, String message) {
+            this.level = level;
+            this.time = time;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+
+    /**
+     * the single consumer of the ring buffer, which parks while the buffer is empty
+     */
+    private static class Writer extends Thread {
+        private final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss SSS");
+        private final String fileName = System.getProperty("log.file");
+        private final long maxFileSize = Long.getLong("log.maxFileSize", 16 << 20);
+        private final int maxFiles = Integer.getInteger("log.maxFiles", 4);
+        private PrintStream file;
+        private long fileSize;
+        private volatile boolean waiting, stopped;
+
+        Writer() {
+            super("Log Writer");
+            setDaemon(true);
+        }
+
+        void wakeUp() {
+            if (waiting) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        /**
+         * stop after the buffer is drained
+         */
+        void shutdown() {
+            stopped = true;
+            LockSupport.unpark(this);
+            try {
+                join(1000);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event = BUFFER.poll();
+                if (event != null) {
+                    write(event);
+                    continue;
+                }
+                flush();
+                if (stopped) {
+                    return;
+                }
+                waiting = true;
+                // a message published before waiting is set is seen here, or the publisher sees waiting set
+                if (BUFFER.isEmpty() && !stopped) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+            }
+        }
+
+        private void write(Event event) {
+            String line = event.message == null ? "" :
+                    "[" + format.format(new Date(event.time)) + " - " + event.thread + "]" + event.message;
+            PrintStream out = output(event.level);
+            out.println(line);
+            if (out == file) {
+                fileSize += line.length() + 1;
+                if (fileSize > maxFileSize) {
+                    rotate();
+                }
+            }
+        }
+
+        private PrintStream output(Level level) {
+            if (fileName == null) {
+                return level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            }
+            if (file == null) {
+                File f = new File(fileName);
+                try {
+                    file = new PrintStream(new BufferedOutputStream(new FileOutputStream(f, true)));
+                    fileSize = f.length();
+                } catch (FileNotFoundException e) {
+                    System.err.println("Log: can't open " + fileName + ", " + e);
+                    return System.err;
+                }
+            }
+            return file;
+        }
+
+        /**
+         * shift <code>[file].i</code> to <code>[file].(i+1)</code>, dropping the oldest, and the file to <code>[file].1</code>
+         */
+        private void rotate() {
+            file.close();
+            file = null;
+            new File(fileName + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                new File(fileName + "." + i).renameTo(new File(fileName + "." + (i + 1)));
+            }
+            if (maxFiles > 0) {
+                new File(fileName).renameTo(new File(fileName + ".1"));
+            } else {
+                new File(fileName).delete();
+            }
+        }
+
+        private void flush() {
+            if (file != null) {
+                file.flush();
+            } else {
+                System.out.flush();
+                System.err.flush();
+            }
+        }
     }
 }